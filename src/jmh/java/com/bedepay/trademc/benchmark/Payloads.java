@@ -0,0 +1,117 @@
+package com.bedepay.trademc.benchmark;
+
+import com.bedepay.trademc.util.Utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Генераторы данных для бенчмарков в формате TradeMC
+ * Фиксированный seed: при одинаковых параметрах данные совпадают между запусками
+ */
+final class Payloads {
+    static final String CALLBACK_KEY = "a3f1c9e07b5d42e8b6f0d2c4e1a7b9d3";
+
+    private static final String[] ITEM_NAMES = {
+        "VIP на 30 дней", "Премиум навсегда", "Кейс с ресурсами", "Набор строителя", "1000 монет"
+    };
+
+    private Payloads() {
+    }
+
+    /**
+     * Тело callback без поля hash: покупка с items предметами по commands rcon команд в каждом
+     */
+    static String callbackJson(int items, int commands) {
+        Random random = new Random(items * 31L + commands);
+        StringBuilder sb = new StringBuilder(items * (160 + commands * 80));
+        sb.append("{\"id\":").append(1_000_000 + items)
+            .append(",\"buyer\":\"").append(playerName(random)).append('"')
+            .append(",\"time\":").append(1_700_000_000L + items)
+            .append(",\"items\":[");
+        for (int i = 0; i < items; i++) {
+            if (i > 0) sb.append(',');
+            appendItem(sb, random, i, commands, true);
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Тело callback с подписью sha256(json + key), как его отправляет TradeMC
+     */
+    static String signedCallbackJson(int items, int commands) {
+        String json = callbackJson(items, commands);
+        String hash = Utils.sha256(json + CALLBACK_KEY);
+        return json.substring(0, json.length() - 1) + ",\"hash\":\"" + hash + "\"}";
+    }
+
+    /**
+     * Ответ getLastPurchases: purchases покупок от новых к старым, id начинаются с firstId
+     */
+    static String pollJson(int purchases, int commands, long firstId) {
+        Random random = new Random(purchases * 17L + commands);
+        StringBuilder sb = new StringBuilder(purchases * (200 + commands * 80));
+        sb.append("{\"response\":[");
+        for (int i = 0; i < purchases; i++) {
+            if (i > 0) sb.append(',');
+            long id = firstId + purchases - 1 - i;
+            sb.append("{\"id\":").append(id)
+                .append(",\"buyer\":\"").append(playerName(random)).append('"')
+                .append(",\"time\":").append(1_700_000_000L + id)
+                .append(",\"item\":");
+            appendItem(sb, random, i, commands, false);
+            sb.append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Строка лога покупок в формате messages.purchase-log
+     */
+    static String logLine(Random random) {
+        return playerName(random) + " приобрёл донат: " + ITEM_NAMES[random.nextInt(ITEM_NAMES.length)] + ".";
+    }
+
+    /**
+     * Файл лога покупок размером не меньше bytes
+     */
+    static File logFile(File directory, long bytes) throws IOException {
+        File file = new File(directory, "purchases-" + bytes + ".log");
+        Random random = new Random(bytes);
+        try (BufferedWriter out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            long written = 0;
+            while (written < bytes) {
+                String line = "[2024-01-15 12:" + (random.nextInt(50) + 10) + ":00] " + logLine(random);
+                out.write(line);
+                out.write('\n');
+                written += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+        }
+        return file;
+    }
+
+    private static void appendItem(StringBuilder sb, Random random, int index, int commands, boolean withResult) {
+        String name = ITEM_NAMES[index % ITEM_NAMES.length];
+        sb.append("{\"id\":\"").append(100 + index).append('"')
+            .append(",\"name\":\"").append(name).append('"')
+            .append(",\"cost\":").append(random.nextInt(1000)).append(".00");
+        if (withResult) {
+            sb.append(",\"result\":").append(random.nextInt(10) != 0);
+        }
+        sb.append(",\"rcon\":[");
+        for (int c = 0; c < commands; c++) {
+            if (c > 0) sb.append(',');
+            sb.append("[\"lp user {player} parent addtemp vip_").append(c).append(" 30d\",\"")
+                .append("[LP] Set parent for {player}\"]");
+        }
+        sb.append("]}");
+    }
+
+    private static String playerName(Random random) {
+        return "Player_" + Integer.toString(random.nextInt(1 << 20), 36);
+    }
+}
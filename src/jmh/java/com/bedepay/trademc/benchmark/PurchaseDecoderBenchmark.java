@@ -0,0 +1,51 @@
+package com.bedepay.trademc.benchmark;
+
+import com.bedepay.trademc.purchase.Purchase;
+import com.bedepay.trademc.purchase.PurchaseDecoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор покупок из тела callback и ответа getLastPurchases
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class PurchaseDecoderBenchmark {
+    private static final long FIRST_ID = 10_000L;
+
+    @Param({"1", "50", "500"})
+    public int items;
+
+    @Param({"1", "20"})
+    public int commands;
+
+    private String callback;
+    private String poll;
+    private long halfCursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        callback = Payloads.signedCallbackJson(items, commands);
+        poll = Payloads.pollJson(items, commands, FIRST_ID);
+        halfCursor = FIRST_ID + items / 2 - 1; // Половина ответа уже обработана
+    }
+
+    @Benchmark
+    public Purchase decodeCallback() throws IOException {
+        return PurchaseDecoder.decodeCallback(new StringReader(callback));
+    }
+
+    @Benchmark
+    public PurchaseDecoder.PollPage decodePollAllNew() throws IOException {
+        return PurchaseDecoder.decodePoll(new StringReader(poll), FIRST_ID - 1, id -> false);
+    }
+
+    @Benchmark
+    public PurchaseDecoder.PollPage decodePollHalfSeen() throws IOException {
+        return PurchaseDecoder.decodePoll(new StringReader(poll), halfCursor, id -> false);
+    }
+}
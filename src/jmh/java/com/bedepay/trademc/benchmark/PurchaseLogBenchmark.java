@@ -0,0 +1,121 @@
+package com.bedepay.trademc.benchmark;
+
+import com.bedepay.trademc.manager.Settings;
+import com.bedepay.trademc.storage.PurchaseLog;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Лог покупок: добавление строки из потоков выдачи и чтение хвоста файла для /trademc history
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PurchaseLogBenchmark {
+
+    private static final int APPEND_BATCH = 100_000;
+
+    /**
+     * Открытый лог с фоновым потоком записи, как на сервере
+     * Очередь записи не ограничена, поэтому замер идёт пачками по APPEND_BATCH строк на поток,
+     * а после каждой итерации лог закрывается с дозаписью очереди (вне замера)
+     */
+    @State(Scope.Benchmark)
+    public static class AppendState {
+        private static final int LINES = 1024;
+
+        File directory;
+        Settings.Logging settings;
+        PurchaseLog log;
+        String[] lines;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("trademc-jmh-log").toFile();
+            // 64 МБ на файл, без ротации по дням и сжатия
+            settings = new Settings.Logging(true, 64L * 1024 * 1024, false, false, 2, 1000L, 500);
+
+            Random random = new Random(42);
+            lines = new String[LINES];
+            for (int i = 0; i < LINES; i++) {
+                lines[i] = Payloads.logLine(random);
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void open() throws IOException {
+            log = new PurchaseLog(directory, settings, Logger.getLogger("TradeMc-jmh"), Runnable::run);
+            log.open();
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() {
+            log.close(); // Дожидается записи очереди
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Готовый файл лога заданного размера
+     */
+    @State(Scope.Benchmark)
+    public static class TailState {
+        @Param({"1048576", "8388608"})
+        public long fileBytes;
+
+        @Param({"10", "500"})
+        public int maxLines;
+
+        File directory;
+        File file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("trademc-jmh-tail").toFile();
+            file = Payloads.logFile(directory, fileBytes);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteRecursively(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5, batchSize = APPEND_BATCH)
+    @Measurement(iterations = 20, batchSize = APPEND_BATCH)
+    @Threads(4)
+    public void append(AppendState state, Cursor cursor) {
+        state.log.append(state.lines[cursor.next++ & (AppendState.LINES - 1)]);
+    }
+
+    @Benchmark
+    public List<String> readTail(TailState state) throws IOException {
+        return PurchaseLog.readTail(state.file, state.maxLines);
+    }
+
+    private static void deleteRecursively(File directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
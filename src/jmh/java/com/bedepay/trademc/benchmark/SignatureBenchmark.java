@@ -0,0 +1,46 @@
+package com.bedepay.trademc.benchmark;
+
+import com.bedepay.trademc.util.CallbackSignature;
+import com.bedepay.trademc.util.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Подпись callback: хэш строки и проверка подписи по байтам тела запроса
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class SignatureBenchmark {
+    @Param({"1", "50", "500"})
+    public int items;
+
+    @Param({"1", "20"})
+    public int commands;
+
+    private String unsigned;
+    private byte[] body;
+    private byte[] key;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        unsigned = Payloads.callbackJson(items, commands) + Payloads.CALLBACK_KEY;
+        body = Payloads.signedCallbackJson(items, commands).getBytes(StandardCharsets.UTF_8);
+        key = Payloads.CALLBACK_KEY.getBytes(StandardCharsets.UTF_8);
+        if (!CallbackSignature.verify(body, key)) {
+            throw new IllegalStateException("Подпись тестового callback не прошла проверку");
+        }
+    }
+
+    @Benchmark
+    public String sha256() {
+        return Utils.sha256(unsigned);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return CallbackSignature.verify(body, key);
+    }
+}
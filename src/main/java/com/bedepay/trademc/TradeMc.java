@@ -1,14 +1,20 @@
 package com.bedepay.trademc;
 
 import com.bedepay.trademc.manager.*;
+import com.bedepay.trademc.metrics.MetricsRegistry;
+import com.bedepay.trademc.scheduler.BroadcastAggregator;
+import com.bedepay.trademc.scheduler.MainThreadDispatcher;
+import com.bedepay.trademc.scheduler.PollScheduler;
+import com.bedepay.trademc.scheduler.TaskExecutor;
 import com.bedepay.trademc.server.CallbackServer;
+import com.bedepay.trademc.storage.CallbackJournal;
+import com.bedepay.trademc.storage.PurchaseLog;
 import org.bukkit.event.*;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.File;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
 
 /**
  * Главный класс плагина для интеграции с TradeMC
@@ -20,9 +26,16 @@ public class TradeMc extends JavaPlugin implements Listener {
     private DatabaseManager databaseManager;  // Управление базой данных
     private PurchaseManager purchaseManager;  // Управление покупками
     private CommandManager commandManager;    // Управление командами
-    private CallbackServer callbackServer;    // Сервер для обратных вызовов
+    private volatile CallbackServer callbackServer; // Сервер для обратных вызовов (заменяется при reload)
     private boolean configValid = false;      // Поле для отслеживания валидности конфигурации
-    private ExecutorService executorService;   // Асинхронный исполнитель для задач
+    private TaskExecutor executorService;      // Асинхронный исполнитель для задач
+    private PollScheduler pollScheduler;       // Планировщик опроса API
+    private CallbackJournal callbackJournal;   // Журнал предзаписи callback
+    private MainThreadDispatcher mainThreadDispatcher; // Очередь команд для основного потока
+    private PurchaseLog purchaseLog;           // Лог покупок с фоновой записью
+    private BroadcastAggregator broadcastAggregator; // Объединение оповещений о покупках
+    private LifecycleManager lifecycleManager; // Запуск и перезапуск опроса и callback сервера
+    private final MetricsRegistry metrics = new MetricsRegistry(); // Счётчики, гистограммы и показатели
 
     @Override
     public void onEnable() {
@@ -31,9 +44,6 @@ public class TradeMc extends JavaPlugin implements Listener {
             getLogger().info("║             ЗАПУСК ПЛАГИНА TRADEMC               ║");
             getLogger().info("╠═══════════════════════════════════════════════════╣");
 
-            // Инициализация ExecutorService
-            executorService = Executors.newCachedThreadPool();
-
             // Сохраняем конфиги
             saveDefaultConfig();
 
@@ -41,12 +51,15 @@ public class TradeMc extends JavaPlugin implements Listener {
             configManager = new ConfigManager(this);
             configManager.loadConfigs();
 
+            // Инициализация исполнителя асинхронных задач (настройки из секции executor)
+            executorService = TaskExecutor.create(this, configManager.getSettings().executor(), "TradeMc-worker");
+
             // Проверка настроек
             if (!checkAndUpdateConfig()) {
                 getLogger().info("║ ⚠ Требуется настройка плагина:                  ║");
                 getLogger().info("║ 1. Откройте файл plugins/TradeMc/config.yml     ║");
                 getLogger().info("║ 2. Укажите ID магазина в параметре 'shops'     ║");
-                if (getConfig().getBoolean("callback.enabled", false)) {
+                if (configManager.getSettings().callback().enabled()) {
                     getLogger().info("║ 3. Укажите ключ в параметре 'callback-key'     ║");
                 }
                 getLogger().info("║ 4. Используйте /trademc reload                  ║");
@@ -58,15 +71,36 @@ public class TradeMc extends JavaPlugin implements Listener {
             databaseManager = new DatabaseManager(this);
             purchaseManager = new PurchaseManager(this);
             commandManager = new CommandManager(this);
+            pollScheduler = new PollScheduler(this);
+            mainThreadDispatcher = new MainThreadDispatcher(this, configManager.getSettings().dispatch());
+            mainThreadDispatcher.start();
+            purchaseLog = new PurchaseLog(this);
+            purchaseLog.open();
+            broadcastAggregator = new BroadcastAggregator(this, configManager.getSettings().broadcast());
+            broadcastAggregator.start();
+            registerGauges();
+
+            // Журнал callback открывается всегда, чтобы callback можно было включить через reload
+            boolean callbackEnabled = configManager.getSettings().callback().enabled();
+            callbackJournal = new CallbackJournal(this, new File(getDataFolder(), "data" + File.separator + "callbacks.journal"));
+            List<CallbackJournal.Entry> unfinished = callbackJournal.open(purchaseManager::processJournalEntry);
+            if (!unfinished.isEmpty()) {
+                if (callbackEnabled) {
+                    getLogger().info("║ ↻ Повторная обработка callback: " + unfinished.size());
+                } else {
+                    getLogger().warning("Незавершённые callback (" + unfinished.size() + ") будут обработаны после включения callback");
+                }
+                // При выключенном callback записи ждут его включения (LifecycleManager.reconcile)
+                unfinished.forEach(purchaseManager::processJournalEntry);
+            }
 
             // Настройка режима работы
-            boolean callbackEnabled = getConfig().getBoolean("callback.enabled", false);
+            lifecycleManager = new LifecycleManager(this);
+            lifecycleManager.reconcile(configManager.getSettings());
             if (callbackEnabled) {
-                callbackServer = new CallbackServer(this);
                 getLogger().info("║ ✓ Режим работы: Callback (мгновенные уведомления) ║");
             } else {
-                int interval = getConfig().getInt("check-interval-seconds", 60);
-                startPurchaseChecker(interval);
+                int interval = configManager.getSettings().polling().intervalSeconds();
                 getLogger().info("║ ✓ Режим работы: Проверка каждые " + interval + " сек      ║");
             }
 
@@ -86,27 +120,45 @@ public class TradeMc extends JavaPlugin implements Listener {
         }
     }
 
-    public void startPurchaseChecker(int interval) {
-        getServer().getScheduler().runTaskTimerAsynchronously(this,
-            () -> {
-                if (isConfigValid()) {
-                    purchaseManager.checkNewPurchases(false);
-                }
-            },
-            20L * 10,           // 10 секунд задержка
-            20L * interval      // Интервал проверки
-        );
+    /**
+     * Регистрирует показатели очередей и пулов, значения читаются в момент запроса метрик
+     */
+    private void registerGauges() {
+        metrics.gauge("trademc_executor_active_threads", "Активные потоки пула плагина",
+            () -> executorService.getActiveCount());
+        metrics.gauge("trademc_executor_queue_depth", "Задачи в очереди пула плагина",
+            () -> executorService.getQueueDepth());
+        metrics.gauge("trademc_executor_rejected", "Отклонённые задачи пула плагина с запуска",
+            () -> executorService.getRejectedCount());
+        metrics.gauge("trademc_callback_executor_queue_depth", "Запросы в очереди пула callback",
+            () -> callbackServer != null && callbackServer.getExecutor() != null ? callbackServer.getExecutor().getQueueDepth() : 0);
+        metrics.gauge("trademc_dispatch_queue_depth", "Команды в очереди основного потока",
+            () -> mainThreadDispatcher.getQueueDepth());
+        metrics.gauge("trademc_dispatch_last_tick_seconds", "Время разбора очереди команд за последний тик",
+            () -> mainThreadDispatcher.getLastDrainMillis() / 1000.0);
+        metrics.gauge("trademc_db_queue_depth", "Донаты в очереди на запись в базу данных",
+            () -> databaseManager.getQueueDepth());
+        metrics.gauge("trademc_pending_deliveries", "Отложенные команды для игроков не в сети",
+            () -> configManager.getPendingDeliveries().getDeliveryCount());
+    }
+
+    /**
+     * Запускает опрос покупок, предыдущий цикл опроса отменяется
+     */
+    public void startPurchaseChecker() {
+        pollScheduler.start(10); // 10 секунд задержка перед первым опросом
     }
 
     /**
      * Проверяет и обновляет статус конфигурации
      */
     public boolean checkAndUpdateConfig() {
-        String shopId = getConfig().getString("shops", "0");
-        boolean callbackEnabled = getConfig().getBoolean("callback.enabled", false);
-        String callbackKey = getConfig().getString("callback-key", "");
+        Settings settings = configManager.getSettings();
+        String shopId = settings.shopId();
+        boolean callbackEnabled = settings.callback().enabled();
+        String callbackKey = settings.callbackKey();
 
-        boolean isShopIdValid = !shopId.equals("0") && !shopId.isEmpty();
+        boolean isShopIdValid = settings.isShopIdValid();
         boolean isCallbackKeyValid = !callbackKey.isEmpty();
 
         // Вывод статуса настроек
@@ -156,30 +208,47 @@ public class TradeMc extends JavaPlugin implements Listener {
 
     @Override
     public void onDisable() {
+        // Сначала перестаём опрашивать API и принимать callback, затем дожидаемся обработки уже принятых
+        if (lifecycleManager != null) {
+            lifecycleManager.shutdown();
+        }
+        if (executorService != null && !executorService.isShutdown()) {
+            executorService.close();
+        }
+        if (mainThreadDispatcher != null) {
+            mainThreadDispatcher.stop();
+        }
+        // После выполнения оставшихся команд, чтобы их callback были отмечены завершёнными
+        if (callbackJournal != null) {
+            callbackJournal.close();
+        }
+        // После выполнения оставшихся команд, которые ещё пишут в лог и оповещают игроков
+        if (broadcastAggregator != null) {
+            broadcastAggregator.stop();
+        }
+        if (purchaseLog != null) {
+            purchaseLog.close();
+        }
+
         // Сохранение всех данных перед отключением
         if (configManager != null) {
             configManager.saveAll();
+            configManager.close();
         }
 
         if (databaseManager != null) {
             databaseManager.disconnect();
         }
-        if (callbackServer != null) {
-            callbackServer.stop();
-        }
-        if (executorService != null && !executorService.isShutdown()) {
-            executorService.shutdown();
-        }
         getLogger().info("TradeMc plugin disabled successfully");
     }
 
     @EventHandler(priority = EventPriority.NORMAL)
     public void onPlayerJoin(PlayerJoinEvent event) {
-        // Запускаем проверку в асинхронном потоке
-        getServer().getScheduler().runTaskAsynchronously(this, () -> {
-            String playerName = event.getPlayer().getName().toLowerCase();
-            purchaseManager.processPendingPurchases(playerName);
-        });
+        if (purchaseManager == null) return;
+        String playerName = event.getPlayer().getName();
+        // У большинства игроков отложенных выдач нет - проверка в памяти, без создания задачи
+        if (!configManager.getPendingDeliveries().hasPending(playerName)) return;
+        purchaseManager.schedulePendingPurchases(playerName);
     }
 
     // Геттеры для доступа к менеджерам
@@ -188,7 +257,14 @@ public class TradeMc extends JavaPlugin implements Listener {
     public PurchaseManager getPurchaseManager() { return purchaseManager; }
     public CommandManager getCommandManager() { return commandManager; }
     public CallbackServer getCallbackServer() { return callbackServer; }
-    public ExecutorService getExecutorService() { return executorService; }
+    public TaskExecutor getExecutorService() { return executorService; }
+    public PollScheduler getPollScheduler() { return pollScheduler; }
+    public CallbackJournal getCallbackJournal() { return callbackJournal; }
+    public MainThreadDispatcher getMainThreadDispatcher() { return mainThreadDispatcher; }
+    public PurchaseLog getPurchaseLog() { return purchaseLog; }
+    public BroadcastAggregator getBroadcastAggregator() { return broadcastAggregator; }
+    public LifecycleManager getLifecycleManager() { return lifecycleManager; }
+    public MetricsRegistry getMetrics() { return metrics; }
 
     public void setCallbackServer(CallbackServer server) {
         this.callbackServer = server;
@@ -1,23 +1,44 @@
 package com.bedepay.trademc.manager;
 
 import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.metrics.Counter;
+import com.bedepay.trademc.metrics.Gauge;
+import com.bedepay.trademc.metrics.Histogram;
+import com.bedepay.trademc.metrics.Metric;
 import com.bedepay.trademc.util.Utils;
+import com.bedepay.trademc.scheduler.MainThreadDispatcher;
+import com.bedepay.trademc.scheduler.PollScheduler;
+import com.bedepay.trademc.scheduler.TaskExecutor;
 import com.bedepay.trademc.server.CallbackServer;
+import com.bedepay.trademc.storage.PurchaseLog;
 import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
 
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Менеджер команд плагина TradeMC
  * Обрабатывает все команды и их аргументы
  */
 public class CommandManager implements CommandExecutor, TabCompleter {
+    private static final int PAGE_SIZE = 10;
+    private static final int TOP_LIMIT = 10;
+    private static final int DEFAULT_WINDOW_DAYS = 30;
+    private static final String METRIC_PREFIX = "trademc_";
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
     private final TradeMc plugin;
 
     public CommandManager(TradeMc plugin) {
@@ -48,7 +69,7 @@ public class CommandManager implements CommandExecutor, TabCompleter {
             switch (args[0].toLowerCase()) {
                 case "reload":
                     if (!sender.hasPermission("trademc.admin")) {
-                        sender.sendMessage(Utils.color(plugin.getConfigManager().getLocaleMsg("messages.not-allowed")));
+                        sender.sendMessage(plugin.getConfigManager().getLocaleMsg("messages.not-allowed"));
                         return true;
                     }
                     handleReloadCommand(sender);
@@ -56,7 +77,7 @@ public class CommandManager implements CommandExecutor, TabCompleter {
 
                 case "check":
                     if (!sender.hasPermission("trademc.admin")) {
-                        sender.sendMessage(Utils.color(plugin.getConfigManager().getLocaleMsg("messages.not-allowed")));
+                        sender.sendMessage(plugin.getConfigManager().getLocaleMsg("messages.not-allowed"));
                         return true;
                     }
                     handleCheckCommand(sender);
@@ -64,7 +85,7 @@ public class CommandManager implements CommandExecutor, TabCompleter {
 
                 case "getonline":
                     if (!sender.hasPermission("trademc.admin")) {
-                        sender.sendMessage(Utils.color(plugin.getConfigManager().getLocaleMsg("messages.not-allowed")));
+                        sender.sendMessage(plugin.getConfigManager().getLocaleMsg("messages.not-allowed"));
                         return true;
                     }
                     handleGetOnlineCommand(sender);
@@ -72,10 +93,46 @@ public class CommandManager implements CommandExecutor, TabCompleter {
 
                 case "history":
                     if (!sender.hasPermission("trademc.admin")) {
-                        sender.sendMessage(Utils.color(plugin.getConfigManager().getLocaleMsg("messages.not-allowed")));
+                        sender.sendMessage(plugin.getConfigManager().getLocaleMsg("messages.not-allowed"));
+                        return true;
+                    }
+                    handleHistoryCommand(sender, args.length >= 2 ? parsePositive(args[1], 1) : 1);
+                    break;
+
+                case "donations":
+                    if (!sender.hasPermission("trademc.admin")) {
+                        sender.sendMessage(plugin.getConfigManager().getLocaleMsg("messages.not-allowed"));
+                        return true;
+                    }
+                    if (args.length >= 2) {
+                        handleDonationsCommand(sender, args[1], args.length >= 3 ? parsePositive(args[2], 1) : 1);
+                    } else {
+                        sender.sendMessage(Utils.color("&cИспользование: /trademc donations <игрок> [страница]"));
+                    }
+                    break;
+
+                case "top":
+                    if (!sender.hasPermission("trademc.admin")) {
+                        sender.sendMessage(plugin.getConfigManager().getLocaleMsg("messages.not-allowed"));
+                        return true;
+                    }
+                    handleTopCommand(sender, args.length >= 2 ? parsePositive(args[1], DEFAULT_WINDOW_DAYS) : DEFAULT_WINDOW_DAYS);
+                    break;
+
+                case "revenue":
+                    if (!sender.hasPermission("trademc.admin")) {
+                        sender.sendMessage(plugin.getConfigManager().getLocaleMsg("messages.not-allowed"));
+                        return true;
+                    }
+                    handleRevenueCommand(sender, args.length >= 2 ? parsePositive(args[1], DEFAULT_WINDOW_DAYS) : DEFAULT_WINDOW_DAYS);
+                    break;
+
+                case "stats":
+                    if (!sender.hasPermission("trademc.admin")) {
+                        sender.sendMessage(plugin.getConfigManager().getLocaleMsg("messages.not-allowed"));
                         return true;
                     }
-                    handleHistoryCommand(sender);
+                    handleStatsCommand(sender);
                     break;
 
                 case "debugpurchase":
@@ -109,7 +166,11 @@ public class CommandManager implements CommandExecutor, TabCompleter {
             sender.sendMessage(Utils.color("&e/trademc reload &7- Перезагрузить конфигурацию"));
             sender.sendMessage(Utils.color("&e/trademc check &7- Проверить состояние TradeMC API"));
             sender.sendMessage(Utils.color("&e/trademc getOnline &7- Проверить статус онлайн магазинов"));
-            sender.sendMessage(Utils.color("&e/trademc history &7- Просмотреть последние действия"));
+            sender.sendMessage(Utils.color("&e/trademc history [страница] &7- Просмотреть последние действия"));
+            sender.sendMessage(Utils.color("&e/trademc donations <игрок> [страница] &7- Донаты игрока (MySQL)"));
+            sender.sendMessage(Utils.color("&e/trademc top [дней] &7- Топ донатеров за период (MySQL)"));
+            sender.sendMessage(Utils.color("&e/trademc revenue [дней] &7- Выручка по предметам за период (MySQL)"));
+            sender.sendMessage(Utils.color("&e/trademc stats &7- Счётчики, задержки и очереди плагина"));
             sender.sendMessage(Utils.color("&e/trademc debugPurchase &7- Тестовая покупка для отладки"));
         }
     }
@@ -118,51 +179,206 @@ public class CommandManager implements CommandExecutor, TabCompleter {
      * Проверяет статус подключения к TradeMC и callback серверу
      */
     private void handleCheckCommand(CommandSender sender) {
-        boolean trademcStatus = testConnection();
-        boolean callbackStatus = false;
+        testConnection().thenAccept(trademcStatus -> runSync(() -> {
+            boolean callbackStatus = false;
 
-        if (plugin.getCallbackServer() != null && plugin.getConfig().getBoolean("callback.enabled", false)) {
-            callbackStatus = plugin.getCallbackServer().isEnabled();
-        }
+            boolean callbackEnabled = plugin.getConfigManager().getSettings().callback().enabled();
+            CallbackServer callbackServer = plugin.getCallbackServer();
+            if (callbackServer != null && callbackEnabled) {
+                callbackStatus = callbackServer.isEnabled();
+            }
+
+            String trademcStatusMsg = trademcStatus ? "&aTradeMC API: OK" : "&cTradeMC API: FAIL";
+            String callbackStatusMsg = callbackEnabled
+                ? (callbackStatus ? "&aCallback: OK" : "&cCallback: FAIL")
+                : "&7Callback: Disabled";
+
+            sender.sendMessage(Utils.color("&eTradeMC Status: " + trademcStatusMsg + ", " + callbackStatusMsg));
+
+            PollScheduler scheduler = plugin.getPollScheduler();
+            if (scheduler != null && scheduler.isRunning()) {
+                long nextIn = Math.max(0, (scheduler.getNextRunAt() - System.currentTimeMillis()) / 1000L);
+                sender.sendMessage(Utils.color("&ePoll: интервал " + scheduler.getCurrentIntervalSeconds()
+                    + " сек, следующий опрос через " + nextIn + " сек, ошибок подряд: " + scheduler.getConsecutiveFailures()));
+            }
 
-        String trademcStatusMsg = trademcStatus ? "&aTradeMC API: OK" : "&cTradeMC API: FAIL";
-        String callbackStatusMsg = plugin.getConfig().getBoolean("callback.enabled", false)
-            ? (callbackStatus ? "&aCallback: OK" : "&cCallback: FAIL")
-            : "&7Callback: Disabled";
+            TaskExecutor executor = plugin.getExecutorService();
+            sender.sendMessage(Utils.color("&eExecutor: активно " + executor.getActiveCount()
+                + ", в очереди " + executor.getQueueDepth() + ", отклонено " + executor.getRejectedCount()));
+
+            MainThreadDispatcher dispatcher = plugin.getMainThreadDispatcher();
+            sender.sendMessage(Utils.color(String.format("&eDispatch: в очереди %d, за тик %.2f мс (макс. %.2f мс)",
+                dispatcher.getQueueDepth(), dispatcher.getLastDrainMillis(), dispatcher.getMaxDrainMillis())));
+            plugin.getLogger().info("TradeMc Check Command Executed by " + sender.getName());
+        }));
+    }
+
+    /**
+     * Показывает метрики плагина: счётчики, задержки (по корзинам гистограмм) и текущие очереди
+     */
+    private void handleStatsCommand(CommandSender sender) {
+        sender.sendMessage(Utils.color("&6=== TradeMC Статистика ==="));
+        for (Metric metric : plugin.getMetrics().getMetrics()) {
+            String name = metric.getName().startsWith(METRIC_PREFIX)
+                ? metric.getName().substring(METRIC_PREFIX.length())
+                : metric.getName();
+            String value;
+            if (metric instanceof Counter counter) {
+                value = String.valueOf(counter.get());
+            } else if (metric instanceof Histogram histogram) {
+                value = histogram.getCount() == 0 ? "нет данных" : String.format("%d, ср. %.1f мс, p50 ≤ %s, p95 ≤ %s, p99 ≤ %s",
+                    histogram.getCount(), histogram.getMeanMillis(),
+                    formatMillis(histogram.getQuantileMillis(0.50)),
+                    formatMillis(histogram.getQuantileMillis(0.95)),
+                    formatMillis(histogram.getQuantileMillis(0.99)));
+            } else if (metric instanceof Gauge gauge) {
+                double current = gauge.get();
+                value = Double.isNaN(current) ? "-" : current == Math.rint(current)
+                    ? String.valueOf((long) current)
+                    : String.format("%.3f", current);
+            } else {
+                continue;
+            }
+            sender.sendMessage(Utils.color("&7" + name + ": &f" + value));
+        }
+        plugin.getLogger().info("TradeMc Stats Command Executed by " + sender.getName());
+    }
 
-        sender.sendMessage(Utils.color("&eTradeMC Status: " + trademcStatusMsg + ", " + callbackStatusMsg));
-        plugin.getLogger().info("TradeMc Check Command Executed by " + sender.getName());
+    private static String formatMillis(double millis) {
+        if (Double.isInfinite(millis)) return "∞";
+        return (millis == Math.rint(millis) ? String.valueOf((long) millis) : String.valueOf(millis)) + " мс";
     }
 
     /**
      * Получает информацию о статусе онлайн магазина
      */
     private void handleGetOnlineCommand(CommandSender sender) {
-        String response = plugin.getPurchaseManager().callTradeMcApi(
+        plugin.getPurchaseManager().callTradeMcApiAsync(
             "shop",
             "getOnline",
-            "shop=" + plugin.getConfig().getString("shops", "0")
-        );
-
-        sender.sendMessage(Utils.color(plugin.getConfigManager().getLocaleMsg("messages.getonline")));
-        sender.sendMessage(Utils.color(response));
-        plugin.getLogger().info("TradeMc GetOnline Command Executed by " + sender.getName());
+            "shop=" + plugin.getConfigManager().getSettings().shopId()
+        ).thenAccept(response -> runSync(() -> {
+            sender.sendMessage(plugin.getConfigManager().getLocaleMsg("messages.getonline"));
+            sender.sendMessage(Utils.color(response));
+            plugin.getLogger().info("TradeMc GetOnline Command Executed by " + sender.getName());
+        }));
     }
 
     /**
-     * Показывает историю последних покупок
+     * Показывает историю последних покупок из буфера в памяти, без чтения файла лога
      */
-    private void handleHistoryCommand(CommandSender sender) {
-        List<String> logs = Utils.loadLogLines(plugin, 10);
+    private void handleHistoryCommand(CommandSender sender, int page) {
+        PurchaseLog purchaseLog = plugin.getPurchaseLog();
+        List<String> logs = purchaseLog.getRecent((page - 1) * PAGE_SIZE, PAGE_SIZE);
         if (logs.isEmpty()) {
-            sender.sendMessage(Utils.color(plugin.getConfigManager().getLocaleMsg("messages.history-empty")));
+            sender.sendMessage(plugin.getConfigManager().getLocaleMsg("messages.history-empty"));
         } else {
-            sender.sendMessage(Utils.color(plugin.getConfigManager().getLocaleMsg("messages.history-title")));
-            logs.forEach(line -> sender.sendMessage(Utils.color("&7" + line)));
+            int pages = (purchaseLog.getRecentCount() + PAGE_SIZE - 1) / PAGE_SIZE;
+            sender.sendMessage(plugin.getConfigManager().getLocaleMsg("messages.history-title")
+                + Utils.color(" &7(" + page + "/" + pages + ")"));
+            // Строки лога - текст покупателей и названий предметов, &-коды в них не раскрашиваются
+            logs.forEach(line -> sender.sendMessage(ChatColor.GRAY + line));
+            if (page < pages) {
+                sender.sendMessage(Utils.color("&7Следующая страница: /trademc history " + (page + 1)));
+            }
         }
         plugin.getLogger().info("TradeMc History Command Executed by " + sender.getName());
     }
 
+    /**
+     * Показывает страницу истории донатов игрока из базы данных
+     */
+    private void handleDonationsCommand(CommandSender sender, String player, int page) {
+        if (!checkDatabase(sender)) return;
+        plugin.getDatabaseManager().getPlayerHistory(player, page, PAGE_SIZE).whenComplete((rows, error) -> runSync(() -> {
+            if (error != null) {
+                reportQueryError(sender, error);
+                return;
+            }
+            if (rows.isEmpty()) {
+                sender.sendMessage(Utils.color("&7Донатов игрока " + player + " не найдено (страница " + page + ")"));
+                return;
+            }
+            sender.sendMessage(Utils.color("&6=== Донаты " + player + ", страница " + page + " ==="));
+            for (DatabaseManager.DonationRecord row : rows) {
+                sender.sendMessage(Utils.color("&7" + DATE_FORMAT.format(Instant.ofEpochMilli(row.timestamp()))
+                    + " &f" + row.item() + " &e" + row.amount().toPlainString()
+                    + (row.purchaseId() > 0 ? " &8#" + row.purchaseId() : "")));
+            }
+            if (rows.size() == PAGE_SIZE) {
+                sender.sendMessage(Utils.color("&7Следующая страница: /trademc donations " + player + " " + (page + 1)));
+            }
+        }));
+    }
+
+    /**
+     * Показывает игроков с наибольшей суммой донатов за последние days дней
+     */
+    private void handleTopCommand(CommandSender sender, int days) {
+        if (!checkDatabase(sender)) return;
+        long since = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+        plugin.getDatabaseManager().getTopDonors(since, TOP_LIMIT).whenComplete((rows, error) -> runSync(() -> {
+            if (error != null) {
+                reportQueryError(sender, error);
+                return;
+            }
+            sender.sendMessage(Utils.color("&6=== Топ донатеров за " + days + " дн. ==="));
+            if (rows.isEmpty()) {
+                sender.sendMessage(Utils.color("&7Донатов за период нет"));
+            }
+            int place = 1;
+            for (DatabaseManager.DonorTotal row : rows) {
+                sender.sendMessage(Utils.color("&e" + place++ + ". &f" + row.buyer() + " &7- &e"
+                    + row.total().toPlainString() + " &7(" + row.purchases() + " покупок)"));
+            }
+        }));
+    }
+
+    /**
+     * Показывает выручку по предметам за последние days дней
+     */
+    private void handleRevenueCommand(CommandSender sender, int days) {
+        if (!checkDatabase(sender)) return;
+        long since = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+        plugin.getDatabaseManager().getRevenueByItem(since, TOP_LIMIT).whenComplete((rows, error) -> runSync(() -> {
+            if (error != null) {
+                reportQueryError(sender, error);
+                return;
+            }
+            sender.sendMessage(Utils.color("&6=== Выручка по предметам за " + days + " дн. ==="));
+            if (rows.isEmpty()) {
+                sender.sendMessage(Utils.color("&7Продаж за период нет"));
+            }
+            for (DatabaseManager.ItemRevenue row : rows) {
+                sender.sendMessage(Utils.color("&f" + row.item() + " &7(" + row.itemId() + ") - &e"
+                    + row.revenue().toPlainString() + " &7(" + row.sold() + " шт.)"));
+            }
+        }));
+    }
+
+    private boolean checkDatabase(CommandSender sender) {
+        if (!plugin.getDatabaseManager().isEnabled()) {
+            sender.sendMessage(Utils.color("&cMySQL отключён, статистика недоступна."));
+            return false;
+        }
+        return true;
+    }
+
+    private void reportQueryError(CommandSender sender, Throwable error) {
+        Throwable cause = error.getCause() != null ? error.getCause() : error;
+        sender.sendMessage(Utils.color("&cОшибка запроса к базе данных: " + cause.getMessage()));
+        plugin.getLogger().severe("Database query failed: " + cause.getMessage());
+    }
+
+    private static int parsePositive(String value, int fallback) {
+        try {
+            int parsed = Integer.parseInt(value);
+            return parsed > 0 ? parsed : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
     /**
      * Обрабатывает тестовую покупку для отладки
      */
@@ -194,13 +410,13 @@ public class CommandManager implements CommandExecutor, TabCompleter {
      */
     private void handleReloadCommand(CommandSender sender) {
         try {
-            // Перезагружаем конфигурацию
-            plugin.reloadConfig();
+            // Перечитываем файлы и атомарно публикуем новый снимок настроек
             plugin.getConfigManager().loadConfigs();
+            Settings settings = plugin.getConfigManager().getSettings();
 
             // Выводим текущие значения для отладки
-            String shopId = plugin.getConfig().getString("shops", "0");
-            String callbackKey = plugin.getConfig().getString("callback-key", "");
+            String shopId = settings.shopId();
+            String callbackKey = settings.callbackKey();
             plugin.getLogger().info("Текущие значения после перезагрузки:");
             plugin.getLogger().info("shops: " + shopId);
             plugin.getLogger().info("callback-key: " + callbackKey);
@@ -208,19 +424,12 @@ public class CommandManager implements CommandExecutor, TabCompleter {
             boolean configValid = plugin.checkAndUpdateConfig();
 
             if (configValid) {
-                // Перезапускаем компоненты, если это необходимо
-                if (plugin.getCallbackServer() != null) {
-                    plugin.getCallbackServer().stop();
+                if (plugin.getPurchaseManager() != null) {
+                    plugin.getPurchaseManager().reloadCommandWhitelist();
                 }
 
-                boolean callbackEnabled = plugin.getConfig().getBoolean("callback.enabled", false);
-                if (callbackEnabled) {
-                    plugin.setCallbackServer(new CallbackServer(plugin));
-                    plugin.getLogger().info("Callback server restarted.");
-                } else {
-                    int interval = plugin.getConfig().getInt("check-interval-seconds", 60);
-                    plugin.startPurchaseChecker(interval);
-                }
+                // Перезапускаются только компоненты, настройки которых изменились
+                plugin.getLifecycleManager().reconcile(settings);
 
                 sender.sendMessage(Utils.color("&a▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃▃"));
                 sender.sendMessage(Utils.color("&aКонфигурация успешно перезагружена!"));
@@ -247,13 +456,19 @@ public class CommandManager implements CommandExecutor, TabCompleter {
     /**
      * Проверяет подключение к API TradeMC
      */
-    private boolean testConnection() {
-        String response = plugin.getPurchaseManager().callTradeMcApi(
+    private CompletableFuture<Boolean> testConnection() {
+        return plugin.getPurchaseManager().callTradeMcApiAsync(
             "shop",
             "getOnline",
-            "shop=" + plugin.getConfig().getString("shops", "0")
-        );
-        return !response.contains("\"error\"");
+            "shop=" + plugin.getConfigManager().getSettings().shopId()
+        ).thenApply(response -> !response.contains("\"error\""));
+    }
+
+    /**
+     * Возвращает выполнение в основной поток сервера (ответ отправителю команды)
+     */
+    private void runSync(Runnable action) {
+        plugin.getServer().getScheduler().runTask(plugin, action);
     }
 
     /**
@@ -264,7 +479,7 @@ public class CommandManager implements CommandExecutor, TabCompleter {
         if (!command.getName().equalsIgnoreCase("trademc")) return null;
 
         if (args.length == 1) {
-            List<String> subCommands = Arrays.asList("reload", "check", "getOnline", "history", "debugPurchase");
+            List<String> subCommands = Arrays.asList("reload", "check", "getOnline", "history", "donations", "top", "revenue", "stats", "debugPurchase");
             List<String> result = new ArrayList<>();
 
             for (String sc : subCommands) {
@@ -273,7 +488,7 @@ public class CommandManager implements CommandExecutor, TabCompleter {
                 }
             }
             return result;
-        } else if (args.length == 2 && args[0].equalsIgnoreCase("debugPurchase")) {
+        } else if (args.length == 2 && (args[0].equalsIgnoreCase("debugPurchase") || args[0].equalsIgnoreCase("donations"))) {
             // Предоставляем список онлайн игроков для автодополнения
             List<String> onlinePlayers = new ArrayList<>();
             Bukkit.getOnlinePlayers().forEach(player -> onlinePlayers.add(player.getName()));
@@ -1,8 +1,17 @@
 package com.bedepay.trademc.manager;
 
 import com.bedepay.trademc.TradeMc;
-import org.bukkit.configuration.file.FileConfiguration;
+import com.bedepay.trademc.storage.PendingDeliveryStore;
+import com.bedepay.trademc.storage.PurchaseLedger;
+import com.bedepay.trademc.util.MessageTemplate;
+import org.bukkit.configuration.file.YamlConfiguration;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -10,35 +19,139 @@ import java.util.*;
  * Управляет загрузкой и сохранением конфигурационных файлов
  */
 public class ConfigManager {
+    private static final MessageTemplate MISSING_MESSAGE = MessageTemplate.compile("&cСообщение не найдено");
+
     private final TradeMc plugin;
-    private final Set<String> processedPurchases;
-    private final Map<String, List<String>> pendingPurchases;
+    private final PurchaseLedger processedPurchases;
+    private final PendingDeliveryStore pendingDeliveries;
+    private final File dataFile;
+    private final File localeFile;
+    private YamlConfiguration dataConfig;
+    private volatile Map<String, MessageTemplate> messages = Map.of(); // Заменяется целиком при перезагрузке
+    private volatile Settings settings;                                 // Снимок config.yml, заменяется при перезагрузке
 
     public ConfigManager(TradeMc plugin) {
         this.plugin = plugin;
-        this.processedPurchases = new HashSet<>();
-        this.pendingPurchases = new HashMap<>();
+        this.processedPurchases = new PurchaseLedger(plugin,
+            new File(plugin.getDataFolder(), "data" + File.separator + "delivered.ledger"));
+        this.pendingDeliveries = new PendingDeliveryStore(plugin,
+            new File(plugin.getDataFolder(), "data" + File.separator + "pending.log"));
+        this.dataFile = new File(plugin.getDataFolder(), "data.yml");
+        this.localeFile = new File(plugin.getDataFolder(), "locale.yml");
     }
 
     public void loadConfigs() {
         plugin.reloadConfig();
-        // Загрузка других конфигураций, если есть
+        settings = Settings.fromConfig(plugin.getConfig());
+        synchronized (this) {
+            if (!dataFile.exists()) {
+                plugin.saveResource("data.yml", false);
+            }
+            dataConfig = YamlConfiguration.loadConfiguration(dataFile);
+        }
+        loadLocale();
+        // Журналы выданных и отложенных покупок открываются один раз, при перезагрузке не перечитываются
+        processedPurchases.open();
+        pendingDeliveries.open();
+    }
+
+    public synchronized void saveAll() {
+        if (dataConfig == null) return;
+        try {
+            dataConfig.save(dataFile);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Ошибка сохранения data.yml: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Возвращает id последней обработанной покупки магазина (курсор опроса)
+     */
+    public synchronized long getPollCursor(String shopId) {
+        return dataConfig != null ? dataConfig.getLong("poll-cursor." + shopId + ".id", 0L) : 0L;
+    }
+
+    /**
+     * Сдвигает курсор опроса магазина и сохраняет его на диск
+     * Курсор только растёт: выдачи разных опросов могут завершиться не по порядку
+     */
+    public synchronized void updatePollCursor(String shopId, long purchaseId, long purchaseTime) {
+        if (dataConfig == null || purchaseId <= getPollCursor(shopId)) return;
+        dataConfig.set("poll-cursor." + shopId + ".id", purchaseId);
+        if (purchaseTime > 0) {
+            dataConfig.set("poll-cursor." + shopId + ".time", purchaseTime);
+        }
+        saveAll();
+    }
+
+    /**
+     * Закрывает файлы данных при выключении плагина
+     */
+    public void close() {
+        // Сохранение отложенных выдач завершает их покупки, которые затем пишутся в журнал выданных
+        pendingDeliveries.close();
+        processedPurchases.close();
     }
 
-    public void saveAll() {
-        // Сохранение данных, если необходимо
+    /**
+     * Текущий снимок настроек, безопасен для чтения из любого потока
+     */
+    public Settings getSettings() {
+        return settings;
     }
 
-    public Set<String> getProcessedPurchases() {
+    public PurchaseLedger getProcessedPurchases() {
         return processedPurchases;
     }
 
-    public Map<String, List<String>> getPendingPurchases() {
-        return pendingPurchases;
+    public PendingDeliveryStore getPendingDeliveries() {
+        return pendingDeliveries;
+    }
+
+    /**
+     * Возвращает скомпилированный шаблон сообщения из locale.yml
+     */
+    public MessageTemplate getMessage(String path) {
+        MessageTemplate template = messages.get(path);
+        return template != null ? template : MISSING_MESSAGE;
     }
 
+    /**
+     * Возвращает сообщение без подстановок, цветовые коды уже переведены
+     */
     public String getLocaleMsg(String path) {
-        FileConfiguration locale = plugin.getConfig(); // Или отдельный файл locale.yml
-        return locale.getString(path, "&cСообщение не найдено");
+        return getMessage(path).render();
+    }
+
+    /**
+     * Читает locale.yml и компилирует все сообщения в неизменяемую таблицу
+     * Ключи, которых нет в файле сервера, берутся из locale.yml внутри плагина
+     */
+    private void loadLocale() {
+        if (!localeFile.exists()) {
+            plugin.saveResource("locale.yml", false);
+        }
+
+        Map<String, MessageTemplate> compiled = new HashMap<>();
+        try (InputStream defaults = plugin.getResource("locale.yml")) {
+            if (defaults != null) {
+                try (Reader reader = new InputStreamReader(defaults, StandardCharsets.UTF_8)) {
+                    compileMessages(YamlConfiguration.loadConfiguration(reader), compiled);
+                }
+            }
+        } catch (IOException e) {
+            plugin.getLogger().warning("Не удалось прочитать locale.yml из плагина: " + e.getMessage());
+        }
+        compileMessages(YamlConfiguration.loadConfiguration(localeFile), compiled);
+        messages = Map.copyOf(compiled);
+    }
+
+    private static void compileMessages(YamlConfiguration locale, Map<String, MessageTemplate> target) {
+        for (String key : locale.getKeys(true)) {
+            if (locale.isString(key)) {
+                target.put(key, MessageTemplate.compile(locale.getString(key)));
+            }
+        }
     }
 }
\ No newline at end of file
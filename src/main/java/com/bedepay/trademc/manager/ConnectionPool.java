@@ -0,0 +1,178 @@
+package com.bedepay.trademc.manager;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Небольшой пул JDBC соединений для DatabaseManager
+ * Проверяет соединения после простоя, закрывает их по истечении срока жизни
+ * и открывает новые взамен потерянных (например, после wait_timeout MySQL)
+ * Соединения выдаются обёрткой: close() возвращает соединение в пул
+ */
+public class ConnectionPool {
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final long maxLifetimeMillis;
+    private final long validateAfterIdleMillis;
+    private final long acquireTimeoutMillis;
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private volatile boolean closed;
+
+    public ConnectionPool(String url, String user, String password, int maxSize,
+                          long maxLifetimeMillis, long validateAfterIdleMillis, long acquireTimeoutMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.permits = new Semaphore(Math.max(1, maxSize), true);
+    }
+
+    /**
+     * Выдаёт соединение из пула, при необходимости открывая новое
+     * Соединение обязательно закрывать (try-with-resources)
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) throw new SQLException("Пул соединений закрыт");
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException("Нет свободных соединений с базой данных");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Ожидание соединения прервано", e);
+        }
+
+        try {
+            PooledConnection pooled;
+            while ((pooled = pollIdle()) != null) {
+                if (isUsable(pooled)) {
+                    return wrap(pooled);
+                }
+                closeQuietly(pooled);
+            }
+            return wrap(new PooledConnection(DriverManager.getConnection(url, user, password)));
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Закрывает все свободные соединения, выданные закроются при возврате
+     */
+    public void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = pollIdle()) != null) {
+            closeQuietly(pooled);
+        }
+    }
+
+    private synchronized PooledConnection pollIdle() {
+        return idle.pollFirst();
+    }
+
+    private boolean isUsable(PooledConnection pooled) {
+        long now = System.currentTimeMillis();
+        if (now - pooled.createdAt >= maxLifetimeMillis) return false;
+        try {
+            if (pooled.raw.isClosed()) return false;
+            // Проверка только после простоя, чтобы не тратить round-trip на каждый запрос
+            return now - pooled.lastUsed < validateAfterIdleMillis || pooled.raw.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        try {
+            boolean reusable = !closed && !pooled.raw.isClosed()
+                && System.currentTimeMillis() - pooled.createdAt < maxLifetimeMillis;
+            if (reusable && !pooled.raw.getAutoCommit()) {
+                // Незавершённая транзакция не должна достаться следующему пользователю
+                pooled.raw.rollback();
+                pooled.raw.setAutoCommit(true);
+            }
+            if (reusable) {
+                pooled.lastUsed = System.currentTimeMillis();
+                synchronized (this) {
+                    idle.addFirst(pooled);
+                }
+            } else {
+                closeQuietly(pooled);
+            }
+        } catch (SQLException e) {
+            closeQuietly(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private Connection wrap(PooledConnection pooled) {
+        boolean[] released = {false};
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[]{Connection.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close":
+                        synchronized (released) {
+                            if (!released[0]) {
+                                released[0] = true;
+                                release(pooled);
+                            }
+                        }
+                        return null;
+                    case "isClosed":
+                        return released[0] || pooled.raw.isClosed();
+                    case "unwrap":
+                    case "isWrapperFor":
+                        break;
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        if (released[0]) throw new SQLException("Соединение уже возвращено в пул");
+                        break;
+                }
+                try {
+                    return method.invoke(pooled.raw, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+    }
+
+    private static void closeQuietly(PooledConnection pooled) {
+        try {
+            pooled.raw.close();
+        } catch (SQLException ignored) {
+            // Соединение уже потеряно
+        }
+    }
+
+    private static final class PooledConnection {
+        final Connection raw;
+        final long createdAt;
+        long lastUsed;
+
+        PooledConnection(Connection raw) {
+            this.raw = raw;
+            this.createdAt = System.currentTimeMillis();
+            this.lastUsed = createdAt;
+        }
+    }
+}
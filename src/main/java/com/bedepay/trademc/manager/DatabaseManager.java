@@ -1,79 +1,522 @@
 package com.bedepay.trademc.manager;
 
 import com.bedepay.trademc.TradeMc;
-import org.bukkit.configuration.file.FileConfiguration;
+import com.bedepay.trademc.metrics.Counter;
+import com.bedepay.trademc.metrics.Histogram;
+import com.bedepay.trademc.purchase.Purchase;
+import com.bedepay.trademc.purchase.PurchaseItem;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Менеджер базы данных для TradeMc
  * Управляет подключением и взаимодействием с базой данных
  */
 public class DatabaseManager {
+    private static final long SPILL_RETRY_INTERVAL_MILLIS = 30_000L;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10_000L;
+    // Повтор записи той же покупки (например, из файла после сбоя) не создаёт дубль
+    private static final String INSERT_DONATION = "INSERT INTO donations "
+        + "(purchase_id, buyer, item_id, item, amount, shop, timestamp) VALUES (?, ?, ?, ?, ?, ?, ?) "
+        + "ON DUPLICATE KEY UPDATE id = id";
+
+    /**
+     * Миграции схемы по порядку, номер версии - индекс + 1
+     * Уже выпущенные шаги не меняются, новые добавляются в конец
+     */
+    private static final String[] MIGRATIONS = {
+        "CREATE TABLE IF NOT EXISTS donations ("
+            + "id INT AUTO_INCREMENT PRIMARY KEY,"
+            + "buyer VARCHAR(255) NOT NULL,"
+            + "item VARCHAR(255) NOT NULL,"
+            + "timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP)",
+        "ALTER TABLE donations"
+            + " ADD COLUMN purchase_id BIGINT NULL,"
+            + " ADD COLUMN item_id VARCHAR(64) NULL,"
+            + " ADD COLUMN amount DECIMAL(12, 2) NOT NULL DEFAULT 0,"
+            + " ADD COLUMN shop VARCHAR(32) NULL",
+        // Покупка может содержать несколько предметов, поэтому уникальна пара (purchase_id, item_id)
+        "CREATE UNIQUE INDEX uq_donations_purchase_item ON donations (purchase_id, item_id)",
+        "CREATE INDEX idx_donations_buyer_time ON donations (buyer, timestamp)",
+        "CREATE INDEX idx_donations_time ON donations (timestamp)"
+    };
+
+    /**
+     * Донат, ожидающий записи в базу
+     */
+    private record Donation(long purchaseId, String buyer, String itemId, String item, double amount, long timestamp) {}
+
+    /**
+     * Строка истории донатов игрока
+     */
+    public record DonationRecord(long purchaseId, String itemId, String item, BigDecimal amount, long timestamp) {}
+
+    /**
+     * Сумма донатов игрока за период
+     */
+    public record DonorTotal(String buyer, int purchases, BigDecimal total) {}
+
+    /**
+     * Выручка по предмету за период
+     */
+    public record ItemRevenue(String itemId, String item, int sold, BigDecimal revenue) {}
+
     private final TradeMc plugin;
-    private Connection connection;
+    private final BlockingQueue<Donation> queue;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final File spillFile;
+    private final String shopId;
+    private final Object spillLock = new Object();
+    private final Histogram writeLatency;
+    private final Counter rowsWritten;
+    private final Counter writeErrors;
+    private final Counter rowsSpilled;
+    private final Settings.Mysql settings;
+    private ConnectionPool pool;
     private boolean enabled;
+    private Thread writer;
+    private volatile boolean running;
+    private long lastSpillRetry;
 
     public DatabaseManager(TradeMc plugin) {
         this.plugin = plugin;
-        this.enabled = plugin.getConfig().getBoolean("mysql.enabled", false);
+        // Настройки читаются из снимка один раз, изменение секции mysql требует перезапуска сервера
+        Settings snapshot = plugin.getConfigManager().getSettings();
+        this.settings = snapshot.mysql();
+        this.enabled = settings.enabled();
+        this.batchSize = settings.batchSize();
+        this.flushIntervalMillis = settings.flushIntervalMillis();
+        this.queue = new ArrayBlockingQueue<>(settings.queueCapacity());
+        this.spillFile = new File(plugin.getDataFolder(), "data" + File.separator + "donations-spill.tsv");
+        this.shopId = snapshot.shopId();
+        this.writeLatency = plugin.getMetrics().histogram("trademc_db_write_seconds", "Запись пачки донатов в базу данных");
+        this.rowsWritten = plugin.getMetrics().counter("trademc_db_rows_written_total", "Донаты, записанные в базу данных");
+        this.writeErrors = plugin.getMetrics().counter("trademc_db_write_errors_total", "Неудачные записи пачек донатов");
+        this.rowsSpilled = plugin.getMetrics().counter("trademc_db_rows_spilled_total", "Донаты, сохранённые в файл из-за недоступности базы");
         if (enabled) {
             connect();
         }
+        if (enabled) {
+            running = true;
+            writer = new Thread(this::writeLoop, "TradeMc-db-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
     }
 
     private void connect() {
-        FileConfiguration config = plugin.getConfig();
-        String host = config.getString("mysql.host", "localhost");
-        int port = config.getInt("mysql.port", 3306);
-        String database = config.getString("mysql.database", "trade_db");
-        String user = config.getString("mysql.user", "root");
-        String password = config.getString("mysql.password", "password");
+        // Кэш подготовленных выражений на стороне драйвера и сервера, пачки INSERT одним запросом
+        String url = "jdbc:mysql://" + settings.host() + ":" + settings.port() + "/" + settings.database() + "?useSSL=false"
+            + "&cachePrepStmts=true&useServerPrepStmts=true"
+            + "&prepStmtCacheSize=" + settings.prepStmtCacheSize()
+            + "&prepStmtCacheSqlLimit=2048&rewriteBatchedStatements=true";
 
-        String url = "jdbc:mysql://" + host + ":" + port + "/" + database + "?useSSL=false";
+        pool = new ConnectionPool(url, settings.user(), settings.password(),
+            settings.poolMaxSize(),
+            settings.maxLifetimeMillis(),
+            settings.validateAfterIdleMillis(),
+            settings.acquireTimeoutMillis());
 
-        try {
-            connection = DriverManager.getConnection(url, user, password);
+        try (Connection connection = pool.getConnection()) {
             plugin.getLogger().info("Подключение к MySQL успешно установлено.");
-            initializeDatabase();
+            migrate(connection);
         } catch (SQLException e) {
             plugin.getLogger().severe("Не удалось подключиться к MySQL: " + e.getMessage());
             e.printStackTrace();
+            pool.close();
+            pool = null;
             enabled = false;
         }
     }
 
-    private void initializeDatabase() {
-        String createTable = "CREATE TABLE IF NOT EXISTS donations (" +
-                "id INT AUTO_INCREMENT PRIMARY KEY," +
-                "buyer VARCHAR(255) NOT NULL," +
-                "item VARCHAR(255) NOT NULL," +
-                "timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
-                ");";
+    /**
+     * Выдаёт соединение из пула (закрытие возвращает его в пул)
+     * Потоки записи и чтения получают разные соединения и не ждут друг друга
+     */
+    public Connection getConnection() throws SQLException {
+        if (pool == null) throw new SQLException("База данных отключена");
+        return pool.getConnection();
+    }
 
+    /**
+     * Доводит схему базы до последней версии, номер версии хранится в trademc_schema
+     * Каждый шаг фиксируется отдельно: DDL в MySQL не откатывается транзакцией
+     */
+    private void migrate(Connection connection) throws SQLException {
         try (Statement stmt = connection.createStatement()) {
-            stmt.execute(createTable);
-            plugin.getLogger().info("Таблица 'donations' готова.");
+            stmt.execute("CREATE TABLE IF NOT EXISTS trademc_schema (version INT NOT NULL)");
+        }
+
+        int version = 0;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM trademc_schema")) {
+            if (rs.next()) {
+                version = rs.getInt(1);
+            }
+        }
+
+        for (int i = version; i < MIGRATIONS.length; i++) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute(MIGRATIONS[i]);
+            }
+            try (PreparedStatement pstmt = connection.prepareStatement("INSERT INTO trademc_schema (version) VALUES (?)")) {
+                pstmt.setInt(1, i + 1);
+                pstmt.executeUpdate();
+            }
+            plugin.getLogger().info("Схема базы данных обновлена до версии " + (i + 1));
+        }
+        plugin.getLogger().info("Таблица 'donations' готова.");
+    }
+
+    /**
+     * Ставит донат в очередь на запись в базу данных
+     * Запись выполняет фоновый поток пачками, вызов не блокирует основной поток
+     */
+    public void logDonation(long purchaseId, String buyer, PurchaseItem item) {
+        Donation donation = new Donation(purchaseId, buyer, item.id(), item.displayName(), item.cost(),
+            System.currentTimeMillis());
+        if (!queue.offer(donation)) {
+            // Очередь заполнена - база не успевает, сохраняем донат в файл
+            spill(List.of(donation));
+        }
+    }
+
+    /**
+     * Фоновая запись: копит донаты до batch-size или flush-interval-ms и пишет их одной транзакцией
+     */
+    private void writeLoop() {
+        List<Donation> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Donation first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    retrySpillIfDue();
+                    continue;
+                }
+                batch.add(first);
+
+                long deadline = System.currentTimeMillis() + flushIntervalMillis;
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    Donation next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                queue.drainTo(batch);
+                running = false;
+            }
+
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Donation> batch) {
+        long start = System.nanoTime();
+        try {
+            insertBatch(batch);
+            writeLatency.recordSince(start);
+            rowsWritten.add(batch.size());
+            plugin.getLogger().info("Записано донатов в базу данных: " + batch.size());
+            if (spillFile.exists()) {
+                replaySpill();
+            }
         } catch (SQLException e) {
-            plugin.getLogger().severe("Ошибка создания таблицы 'donations': " + e.getMessage());
-            e.printStackTrace();
+            writeErrors.increment();
+            plugin.getLogger().severe("Ошибка записи донатов в базу данных: " + e.getMessage()
+                + ". Донаты сохранены в " + spillFile.getName());
+            spill(batch);
+        }
+    }
+
+    private void insertBatch(List<Donation> batch) throws SQLException {
+        try (Connection connection = getConnection()) {
+            insertBatch(connection, batch);
+        }
+    }
+
+    private void insertBatch(Connection connection, List<Donation> batch) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement pstmt = connection.prepareStatement(INSERT_DONATION)) {
+            for (Donation donation : batch) {
+                if (donation.purchaseId() != Purchase.NO_ID) {
+                    pstmt.setLong(1, donation.purchaseId());
+                } else {
+                    pstmt.setNull(1, Types.BIGINT);
+                }
+                pstmt.setString(2, donation.buyer());
+                pstmt.setString(3, donation.itemId());
+                pstmt.setString(4, donation.item());
+                pstmt.setBigDecimal(5, BigDecimal.valueOf(donation.amount()));
+                pstmt.setString(6, shopId);
+                pstmt.setTimestamp(7, new Timestamp(donation.timestamp()));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException ignored) {
+                // Соединение потеряно, откатывать нечего
+            }
+            throw e;
+        } finally {
+            try {
+                connection.setAutoCommit(autoCommit);
+            } catch (SQLException ignored) {
+                // Соединение потеряно
+            }
         }
     }
 
     /**
-     * Записывает информацию о донате в базу данных
+     * Дописывает донаты в локальный файл, если база недоступна
+     * Формат строки: время<TAB>покупатель<TAB>предмет<TAB>id покупки<TAB>id предмета<TAB>сумма
      */
-    public void logDonation(String buyer, String item) {
-        String insert = "INSERT INTO donations (buyer, item) VALUES (?, ?);";
-        try (PreparedStatement pstmt = connection.prepareStatement(insert)) {
-            pstmt.setString(1, buyer);
-            pstmt.setString(2, item);
-            pstmt.executeUpdate();
-            plugin.getLogger().info("Донат записан в базу данных: " + buyer + " - " + item);
+    private void spill(List<Donation> donations) {
+        rowsSpilled.add(donations.size());
+        appendSpill(donations);
+    }
+
+    /**
+     * Запись в файл под spillLock: блокировка держится только на время локального дискового ввода-вывода,
+     * запросы к базе выполняются без неё
+     */
+    private void appendSpill(List<Donation> donations) {
+        synchronized (spillLock) {
+            File parent = spillFile.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(spillFile.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (Donation donation : donations) {
+                    writer.write(donation.timestamp() + "\t" + escape(donation.buyer()) + "\t" + escape(donation.item())
+                        + "\t" + donation.purchaseId() + "\t" + escape(donation.itemId()) + "\t" + donation.amount());
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                plugin.getLogger().severe("Не удалось сохранить донаты в " + spillFile.getName() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void retrySpillIfDue() {
+        long now = System.currentTimeMillis();
+        if (spillFile.exists() && now - lastSpillRetry >= SPILL_RETRY_INTERVAL_MILLIS) {
+            lastSpillRetry = now;
+            replaySpill();
+        }
+    }
+
+    /**
+     * Переносит донаты из локального файла в базу после восстановления соединения
+     * Файл читается и удаляется под spillLock, запись в базу идёт без блокировки,
+     * поэтому spill() из потоков выдачи не ждёт сетевых запросов. Не записанные донаты
+     * дописываются обратно в файл
+     */
+    private void replaySpill() {
+        List<Donation> spilled = takeSpill();
+        if (spilled == null || spilled.isEmpty()) return;
+
+        int written = 0;
+        try (Connection connection = getConnection()) {
+            while (written < spilled.size()) {
+                int end = Math.min(spilled.size(), written + batchSize);
+                insertBatch(connection, spilled.subList(written, end));
+                written = end;
+            }
+            plugin.getLogger().info("Донаты из " + spillFile.getName() + " перенесены в базу данных: " + spilled.size());
         } catch (SQLException e) {
-            plugin.getLogger().severe("Ошибка записи доната в базу данных: " + e.getMessage());
-            e.printStackTrace();
+            // Остаток возвращается в файл, повторим позже (покупки с id при повторе не дублируются)
+            plugin.getLogger().warning("База данных всё ещё недоступна: " + e.getMessage());
+            appendSpill(spilled.subList(written, spilled.size()));
+        }
+    }
+
+    /**
+     * Забирает донаты из файла: читает и удаляет его под spillLock
+     * Возвращает null, если файл не удалось прочитать или удалить (он остаётся для следующей попытки)
+     */
+    private List<Donation> takeSpill() {
+        synchronized (spillLock) {
+            if (!spillFile.exists()) return null;
+            List<Donation> spilled = new ArrayList<>();
+            try (BufferedReader reader = Files.newBufferedReader(spillFile.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t", -1);
+                    if (parts.length != 3 && parts.length != 6) continue;
+                    try {
+                        // Строки старого формата без id покупки и суммы
+                        long purchaseId = parts.length == 6 ? Long.parseLong(parts[3]) : Purchase.NO_ID;
+                        String itemId = parts.length == 6 ? unescape(parts[4]) : unescape(parts[2]);
+                        double amount = parts.length == 6 ? Double.parseDouble(parts[5]) : 0.0;
+                        spilled.add(new Donation(purchaseId, unescape(parts[1]), itemId, unescape(parts[2]),
+                            amount, Long.parseLong(parts[0])));
+                    } catch (NumberFormatException ignored) {
+                        // Повреждённая строка
+                    }
+                }
+            } catch (IOException e) {
+                plugin.getLogger().warning("Не удалось прочитать " + spillFile.getName() + ": " + e.getMessage());
+                return null;
+            }
+            try {
+                Files.delete(spillFile.toPath());
+            } catch (IOException e) {
+                // Без удаления файла донаты записались бы повторно при следующей попытке
+                plugin.getLogger().warning("Не удалось удалить " + spillFile.getName() + ": " + e.getMessage());
+                return null;
+            }
+            return spilled;
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) return value;
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
         }
+        return sb.toString();
+    }
+
+    /**
+     * История донатов игрока, страницы нумеруются с 1, новые записи первыми
+     * Использует индекс (buyer, timestamp)
+     */
+    public CompletableFuture<List<DonationRecord>> getPlayerHistory(String buyer, int page, int pageSize) {
+        return query(() -> {
+            String sql = "SELECT purchase_id, item_id, item, amount, timestamp FROM donations "
+                + "WHERE buyer = ? ORDER BY timestamp DESC, id DESC LIMIT ? OFFSET ?";
+            List<DonationRecord> rows = new ArrayList<>();
+            try (Connection connection = getConnection();
+                 PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setString(1, buyer);
+                pstmt.setInt(2, pageSize);
+                pstmt.setInt(3, Math.max(0, page - 1) * pageSize);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        long purchaseId = rs.getLong(1);
+                        if (rs.wasNull()) {
+                            purchaseId = Purchase.NO_ID;
+                        }
+                        rows.add(new DonationRecord(purchaseId, rs.getString(2), rs.getString(3),
+                            rs.getBigDecimal(4), rs.getTimestamp(5).getTime()));
+                    }
+                }
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * Игроки с наибольшей суммой донатов начиная с момента since (мс)
+     */
+    public CompletableFuture<List<DonorTotal>> getTopDonors(long since, int limit) {
+        return query(() -> {
+            String sql = "SELECT buyer, COUNT(*), SUM(amount) AS total FROM donations "
+                + "WHERE timestamp >= ? GROUP BY buyer ORDER BY total DESC LIMIT ?";
+            List<DonorTotal> rows = new ArrayList<>();
+            try (Connection connection = getConnection();
+                 PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setTimestamp(1, new Timestamp(since));
+                pstmt.setInt(2, limit);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(new DonorTotal(rs.getString(1), rs.getInt(2), rs.getBigDecimal(3)));
+                    }
+                }
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * Выручка по предметам начиная с момента since (мс)
+     * Старые записи без item_id группируются по названию предмета
+     */
+    public CompletableFuture<List<ItemRevenue>> getRevenueByItem(long since, int limit) {
+        return query(() -> {
+            String sql = "SELECT COALESCE(item_id, item) AS item_key, MAX(item), COUNT(*), SUM(amount) AS revenue "
+                + "FROM donations WHERE timestamp >= ? GROUP BY item_key ORDER BY revenue DESC LIMIT ?";
+            List<ItemRevenue> rows = new ArrayList<>();
+            try (Connection connection = getConnection();
+                 PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setTimestamp(1, new Timestamp(since));
+                pstmt.setInt(2, limit);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(new ItemRevenue(rs.getString(1), rs.getString(2), rs.getInt(3), rs.getBigDecimal(4)));
+                    }
+                }
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * Запрос к базе, выполняемый в пуле плагина, а не в основном потоке
+     */
+    private <T> CompletableFuture<T> query(SqlQuery<T> query) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            plugin.getExecutorService().execute(() -> {
+                try {
+                    future.complete(query.run());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @FunctionalInterface
+    private interface SqlQuery<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Количество донатов, ожидающих записи в базу
+     */
+    public int getQueueDepth() {
+        return queue.size();
     }
 
     /**
@@ -87,14 +530,30 @@ public class DatabaseManager {
      * Отключает соединение с базой данных
      */
     public void disconnect() {
-        if (connection != null) {
+        // Дописываем всё из очереди до закрытия соединения
+        if (writer != null) {
+            running = false;
             try {
-                connection.close();
-                plugin.getLogger().info("Соединение с MySQL закрыто.");
-            } catch (SQLException e) {
-                plugin.getLogger().severe("Ошибка при закрытии соединения с MySQL: " + e.getMessage());
-                e.printStackTrace();
+                writer.join(SHUTDOWN_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            if (writer.isAlive()) {
+                plugin.getLogger().warning("Запись донатов не завершилась вовремя, остаток сохраняется в " + spillFile.getName());
+                writer.interrupt();
+            }
+            writer = null;
+        }
+        List<Donation> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) {
+            spill(rest);
+        }
+
+        if (pool != null) {
+            pool.close();
+            pool = null;
+            plugin.getLogger().info("Соединение с MySQL закрыто.");
         }
     }
 }
\ No newline at end of file
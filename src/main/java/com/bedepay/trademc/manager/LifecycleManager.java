@@ -0,0 +1,201 @@
+package com.bedepay.trademc.manager;
+
+import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.scheduler.PollScheduler;
+import com.bedepay.trademc.server.CallbackServer;
+import com.bedepay.trademc.server.MetricsServer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Согласует запущенные компоненты с настройками при запуске и /trademc reload
+ * Новый снимок настроек сравнивается с применённым, перезапускается только то, что изменилось:
+ * опрос API работает только в режиме Poll и всегда в одном экземпляре, сервер callback
+ * перенастраивается без остановки, а при смене адреса новый сокет открывается до закрытия старого.
+ * Метрики Prometheus отдаются callback сервером, а при выключенном callback - отдельным сервером.
+ * Секции executor, logging и mysql читаются только при запуске
+ */
+public class LifecycleManager {
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 15L;
+
+    private final TradeMc plugin;
+    private Settings applied; // Последний применённый снимок, только основной поток
+    private volatile Settings.Callback desiredCallback;
+    private volatile Settings.Metrics desiredMetrics;
+    private MetricsServer metricsServer; // Только основной поток
+    private CompletableFuture<Void> callbackOps = CompletableFuture.completedFuture(null);
+
+    public LifecycleManager(TradeMc plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Приводит компоненты в соответствие с новым снимком настроек (вызывается в основном потоке)
+     */
+    public void reconcile(Settings next) {
+        Settings previous = applied;
+        applied = next;
+        reconcilePoller(previous, next);
+        reconcileMetricsServer(next);
+        if (previous != null) {
+            reconcileComponents(previous, next);
+        }
+
+        desiredCallback = next.callback();
+        desiredMetrics = next.metrics();
+        if (previous == null) {
+            // При запуске сервер поднимается сразу, чтобы ошибка привязки попала в лог запуска
+            applyCallback();
+        } else {
+            // Остановка старого сервера ждёт завершения запросов, поэтому выполняется в пуле;
+            // операции выстраиваются в цепочку и всегда применяют последние настройки
+            callbackOps = callbackOps
+                .exceptionally(error -> null)
+                .thenRunAsync(this::applyCallback, plugin.getExecutorService());
+        }
+
+        // Callback из журнала, принятые до выключения режима callback, обрабатываются после его включения
+        if (next.callback().enabled()) {
+            plugin.getPurchaseManager().resumeJournalEntries();
+        }
+    }
+
+    /**
+     * Останавливает опрос, сервер callback и сервер метрик при выключении плагина
+     */
+    public void shutdown() {
+        try {
+            callbackOps.get(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            plugin.getLogger().warning("Перезапуск callback сервера не завершился до выключения: " + e.getMessage());
+        }
+
+        PollScheduler poller = plugin.getPollScheduler();
+        if (poller != null) {
+            poller.stop();
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
+        }
+        CallbackServer server = plugin.getCallbackServer();
+        if (server != null) {
+            plugin.setCallbackServer(null);
+            server.stop();
+        }
+    }
+
+    private void reconcilePoller(Settings previous, Settings next) {
+        PollScheduler poller = plugin.getPollScheduler();
+        if (next.callback().enabled()) {
+            if (poller.isRunning()) {
+                poller.stop();
+                plugin.getLogger().info("Опрос API остановлен: включён режим callback");
+            }
+            return;
+        }
+
+        // ID магазина читается из снимка при каждом опросе, перезапуск нужен только при смене интервалов
+        boolean changed = previous == null || !previous.polling().equals(next.polling());
+        if (!poller.isRunning() || changed) {
+            plugin.startPurchaseChecker(); // start() отменяет предыдущий цикл опроса
+            if (previous != null) {
+                plugin.getLogger().info("Опрос API перезапущен, интервал " + next.polling().intervalSeconds() + " сек");
+            }
+        }
+    }
+
+    /**
+     * Бюджет основного потока и оповещения применяются сразу,
+     * пул плагина, лог покупок и MySQL создаются один раз при запуске
+     */
+    private void reconcileComponents(Settings previous, Settings next) {
+        if (!previous.dispatch().equals(next.dispatch())) {
+            plugin.getMainThreadDispatcher().update(next.dispatch());
+        }
+        if (!previous.broadcast().equals(next.broadcast())) {
+            plugin.getBroadcastAggregator().update(next.broadcast());
+        }
+        if (!previous.executor().equals(next.executor())
+            || !previous.logging().equals(next.logging())
+            || !previous.mysql().equals(next.mysql())) {
+            plugin.getLogger().warning("Изменения секций executor, logging и mysql применятся после перезапуска сервера");
+        }
+    }
+
+    private void reconcileMetricsServer(Settings next) {
+        boolean standalone = next.metrics().prometheus() && !next.callback().enabled();
+        if (metricsServer != null) {
+            if (standalone && metricsServer.isEnabled() && metricsServer.getSettings().equals(next.metrics())) {
+                return;
+            }
+            metricsServer.stop();
+            metricsServer = null;
+        }
+        if (standalone) {
+            metricsServer = new MetricsServer(plugin, next.metrics());
+        }
+    }
+
+    private void applyCallback() {
+        applyCallbackServer();
+        CallbackServer server = plugin.getCallbackServer();
+        if (server != null) {
+            server.updateMetrics(desiredMetrics);
+        }
+    }
+
+    private void applyCallbackServer() {
+        try {
+            Settings.Callback desired = desiredCallback;
+            CallbackServer current = plugin.getCallbackServer();
+            boolean running = current != null && current.isEnabled();
+
+            if (!desired.enabled()) {
+                if (current != null) {
+                    plugin.setCallbackServer(null);
+                    current.stop();
+                }
+                return;
+            }
+
+            if (running && current.getSettings().sameBinding(desired)) {
+                if (!current.getSettings().equals(desired)) {
+                    current.reconfigure(desired);
+                    plugin.getLogger().info("Callback server reconfigured without restart.");
+                }
+                return;
+            }
+
+            boolean sameAddress = running
+                && current.getSettings().host().equals(desired.host())
+                && current.getSettings().port() == desired.port();
+            if (running && !sameAddress) {
+                // Новый адрес: сначала открываем новый сокет, старый сервер дорабатывает принятые запросы
+                CallbackServer replacement = new CallbackServer(plugin, desired);
+                if (!replacement.isEnabled()) {
+                    plugin.getLogger().warning("Callback server остаётся на прежнем адресе "
+                        + current.getSettings().host() + ":" + current.getSettings().port());
+                    return;
+                }
+                plugin.setCallbackServer(replacement);
+                current.stop();
+                return;
+            }
+
+            // Тот же адрес (изменён backlog) или сервер не запущен - сокет можно открыть только после закрытия старого
+            if (current != null) {
+                current.stop();
+            }
+            plugin.setCallbackServer(new CallbackServer(plugin, desired));
+        } catch (RuntimeException e) {
+            plugin.getLogger().severe("Ошибка применения настроек callback: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,353 +1,635 @@
 package com.bedepay.trademc.manager;
 
 import com.bedepay.trademc.TradeMc;
-import com.bedepay.trademc.util.Utils;
+import com.bedepay.trademc.metrics.Counter;
+import com.bedepay.trademc.metrics.Histogram;
+import com.bedepay.trademc.metrics.MetricsRegistry;
+import com.bedepay.trademc.purchase.CommandWhitelist;
+import com.bedepay.trademc.purchase.Purchase;
+import com.bedepay.trademc.purchase.PurchaseDecoder;
+import com.bedepay.trademc.purchase.PurchaseItem;
+import com.bedepay.trademc.storage.CallbackJournal;
+import com.bedepay.trademc.storage.PendingDeliveryStore;
+import com.bedepay.trademc.storage.PurchaseLedger;
+import com.bedepay.trademc.util.CallbackSignature;
 import com.google.gson.*;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.net.URI;
-import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Менеджер для обработки покупок с TradeMC
  */
 public class PurchaseManager {
-    private final TradeMc plugin;
-    private final boolean isCallbackEnabled;
+    private static final String API_URL = "https://api.trademc.org/";
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    private static final long JOURNAL_RETRY_TICKS = 100; // Пауза перед повтором записи журнала после ошибки
 
-    // Набор разрешённых команд для повышения безопасности
-    private static final Set<String> ALLOWED_COMMANDS = Set.of(
+    private final TradeMc plugin;
+    private final Set<String> joinQueue = ConcurrentHashMap.newKeySet(); // Вошедшие игроки с отложенными выдачами
+    private final AtomicBoolean joinDrainScheduled = new AtomicBoolean();
+    private final Executor pluginExecutor; // Пул плагина для HTTP клиента и записи журнала выданных и курсора опроса
+    private final HttpClient httpClient; // Общий клиент: keep-alive соединения и HTTP/2
+    private volatile CommandWhitelist commandWhitelist; // Разрешённые команды, пересобираются при reload
+    private final Queue<CallbackJournal.Entry> parkedEntries = new ConcurrentLinkedQueue<>(); // Ждут включения callback или повтора
+    private final AtomicBoolean journalRetryScheduled = new AtomicBoolean();
+
+    // Метрики (/trademc stats и /metrics)
+    private final Counter polls;
+    private final Counter pollErrors;
+    private final Counter apiErrors;
+    private final Counter purchasesDelivered;
+    private final Counter commandsDispatched;
+    private final Counter commandsDeferred;
+    private final Counter commandsBlocked;
+    private final Histogram apiLatency;
+    private final Histogram processLatency;
+
+    // Шаблоны по умолчанию, если в config.yml нет commands.allowed
+    private static final List<String> DEFAULT_ALLOWED_COMMANDS = List.of(
         "lp user %player% group set Guardian",
         "give %player% diamond 1"
-        // Добавьте другие разрешённые команды здесь
     );
 
     public PurchaseManager(TradeMc plugin) {
         this.plugin = plugin;
-        this.isCallbackEnabled = plugin.getConfig().getBoolean("callback.enabled", false);
+        // Пул плагина, а если он переполнен или уже остановлен при выключении - вызывающий поток
+        this.pluginExecutor = task -> {
+            try {
+                plugin.getExecutorService().execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        };
+        MetricsRegistry metrics = plugin.getMetrics();
+        this.polls = metrics.counter("trademc_polls_total", "Опросы getLastPurchases");
+        this.pollErrors = metrics.counter("trademc_poll_errors_total", "Опросы, завершившиеся ошибкой");
+        this.apiErrors = metrics.counter("trademc_api_errors_total", "Сетевые ошибки запросов к API TradeMC");
+        this.purchasesDelivered = metrics.counter("trademc_purchases_delivered_total", "Новые покупки, переданные на выдачу");
+        this.commandsDispatched = metrics.counter("trademc_commands_dispatched_total", "Выполненные команды выдачи");
+        this.commandsDeferred = metrics.counter("trademc_commands_deferred_total", "Команды, отложенные до входа игрока");
+        this.commandsBlocked = metrics.counter("trademc_commands_blocked_total", "Команды, не прошедшие белый список");
+        this.apiLatency = metrics.histogram("trademc_api_request_seconds", "Время запроса к API TradeMC");
+        this.processLatency = metrics.histogram("trademc_purchase_process_seconds", "Разбор ответа и постановка покупок на выдачу");
+        this.httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .executor(pluginExecutor) // Без него клиент создаёт собственный неограниченный пул
+            .build();
+        reloadCommandWhitelist();
 
         // Логируем режим работы
         plugin.getLogger().info("TradeMC работает в режиме: " +
-            (isCallbackEnabled ? "Callback (ожидание уведомлений)" : "Poll (периодическая проверка)"));
+            (plugin.getConfigManager().getSettings().callback().enabled() ? "Callback (ожидание уведомлений)" : "Poll (периодическая проверка)"));
+    }
+
+    /**
+     * Результат одного опроса для планировщика
+     */
+    public enum PollResult {
+        NEW_PURCHASES, // Найдены новые покупки
+        IDLE,          // Новых покупок нет
+        ERROR          // Ошибка API или разбора ответа
     }
 
     /**
      * Проверяет наличие новых покупок (используется только в режиме Poll)
+     * Повторы при ошибках выполняет PollScheduler
      */
-    public void checkNewPurchases(boolean isRetryCall) {
-        if (isCallbackEnabled) {
+    public CompletableFuture<PollResult> checkNewPurchases() {
+        Settings settings = plugin.getConfigManager().getSettings();
+        if (settings.callback().enabled()) {
             // В режиме callback не проверяем покупки периодически
-            return;
+            return CompletableFuture.completedFuture(PollResult.IDLE);
         }
 
-        CompletableFuture.runAsync(() -> {
-            try {
-                String shopsParam = "shop=" + plugin.getConfig().getString("shops", "0");
-                String response = callTradeMcApi("shop", "getLastPurchases", shopsParam);
-
-                plugin.getLogger().info("[Poll] Проверка покупок...");
+        String shopId = settings.shopId();
+        polls.increment();
+        return callTradeMcApiAsync("shop", "getLastPurchases", "shop=" + shopId)
+            .thenApplyAsync(response -> {
+                try {
+                    plugin.getLogger().info("[Poll] Проверка покупок...");
 
-                if (response.contains("\"error\"")) {
-                    plugin.getLogger().warning("[Poll] Ошибка получения покупок: " + response);
-                    if (!isRetryCall) {
-                        retryPurchaseCheck();
+                    if (response.contains("\"error\"")) {
+                        plugin.getLogger().warning("[Poll] Ошибка получения покупок: " + response);
+                        return PollResult.ERROR;
                     }
-                    return;
+
+                    int fresh = processPollResponse(shopId, response);
+                    if (fresh < 0) return PollResult.ERROR;
+                    return fresh > 0 ? PollResult.NEW_PURCHASES : PollResult.IDLE;
+                } catch (Exception e) {
+                    plugin.getLogger().severe("[Poll] Ошибка проверки покупок: " + e.getMessage());
+                    e.printStackTrace();
+                    return PollResult.ERROR;
                 }
+            }, plugin.getExecutorService())
+            .whenComplete((result, error) -> {
+                if (error != null || result == PollResult.ERROR) {
+                    pollErrors.increment();
+                }
+            });
+    }
 
-                processPurchasesResponse(response, "Poll");
-            } catch (Exception e) {
-                plugin.getLogger().severe("[Poll] Ошибка проверки покупок: " + e.getMessage());
-                e.printStackTrace();
+    /**
+     * Обрабатывает запись журнала callback и отмечает её завершённой,
+     * когда все команды покупки выполнены или сохранены в отложенные
+     * Подпись записи проверена CallbackServer до помещения в журнал
+     * Если режим callback выключен, запись остаётся незавершённой до его включения
+     * При ошибке обработки (в том числе переполненном пуле) запись повторяется позже
+     */
+    public void processJournalEntry(CallbackJournal.Entry entry) {
+        if (!plugin.getConfigManager().getSettings().callback().enabled()) {
+            parkedEntries.add(entry);
+            return;
+        }
+        processCallback(entry.payload()).whenComplete((result, error) -> {
+            if (error == null) {
+                plugin.getCallbackJournal().markDone(entry.seq());
+                return;
             }
-        }, plugin.getExecutorService());
+            plugin.getLogger().warning("[Callback] Не удалось обработать callback #" + entry.seq()
+                + ", повтор через " + JOURNAL_RETRY_TICKS / 20 + " с: " + error.getMessage());
+            parkedEntries.add(entry);
+            scheduleJournalRetry();
+        });
     }
 
     /**
-     * Повторяет попытку проверки покупок при ошибке
+     * Обрабатывает отложенные записи журнала: после включения callback через reload
+     * или повторно после ошибки обработки
      */
-    private void retryPurchaseCheck() {
-        int maxAttempts = plugin.getConfig().getInt("retry-attempts", 3);
-        int retryDelay = plugin.getConfig().getInt("retry-delay-seconds", 5);
-
-        for (int i = 1; i <= maxAttempts; i++) {
-            final int attempt = i;
-            plugin.getServer().getScheduler().runTaskLaterAsynchronously(plugin, () -> {
-                plugin.getLogger().info("Retry attempt #" + attempt);
-                checkNewPurchases(true);
-            }, 20L * retryDelay);
+    public void resumeJournalEntries() {
+        // Снимок очереди: записи, снова отложенные во время обработки, ждут следующего повтора
+        List<CallbackJournal.Entry> entries = new ArrayList<>();
+        CallbackJournal.Entry entry;
+        while ((entry = parkedEntries.poll()) != null) {
+            entries.add(entry);
+        }
+        if (!entries.isEmpty()) {
+            plugin.getLogger().info("[Callback] Повторная обработка незавершённых callback: " + entries.size());
         }
+        entries.forEach(this::processJournalEntry);
+    }
+
+    /**
+     * Планирует один повтор отложенных записей журнала
+     * При выключении плагина запись остаётся незавершённой в журнале и будет обработана при следующем запуске
+     */
+    private void scheduleJournalRetry() {
+        if (!plugin.isEnabled() || !journalRetryScheduled.compareAndSet(false, true)) return;
+        plugin.getServer().getScheduler().runTaskLaterAsynchronously(plugin, () -> {
+            journalRetryScheduled.set(false);
+            resumeJournalEntries();
+        }, JOURNAL_RETRY_TICKS);
     }
 
     /**
      * Обрабатывает callback от TradeMC
      */
-    public void handlePurchaseCallback(String jsonData) {
-        if (!isCallbackEnabled) {
+    public CompletableFuture<Void> handlePurchaseCallback(String jsonData) {
+        return handlePurchaseCallback(jsonData.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Проверяет подпись и обрабатывает callback от TradeMC (сырое тело HTTP запроса)
+     */
+    public CompletableFuture<Void> handlePurchaseCallback(byte[] body) {
+        if (!plugin.getConfigManager().getSettings().callback().enabled()) {
             plugin.getLogger().warning("[Callback] Получен callback, но режим callback отключен!");
-            return;
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!validateHash(body)) {
+            plugin.getLogger().warning("[Callback] Неверная подпись callback");
+            return CompletableFuture.completedFuture(null);
         }
+        return processCallback(body);
+    }
 
-        CompletableFuture.runAsync(() -> {
-            try {
+    /**
+     * Обрабатывает callback с уже проверенной подписью
+     * Future завершается, когда команды покупки выполнены или сохранены в отложенные,
+     * а покупка записана в журнал выданных. Ошибка сохранения завершает future исключением
+     */
+    private CompletableFuture<Void> processCallback(byte[] body) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
                 plugin.getLogger().info("[Callback] Получено уведомление о покупке");
-                processPurchasesResponse(jsonData, "Callback");
-            } catch (Exception e) {
-                plugin.getLogger().severe("[Callback] Ошибка обработки callback: " + e.getMessage());
-                e.printStackTrace();
-            }
-        }, plugin.getExecutorService());
+                return processPurchasesResponse(new String(body, StandardCharsets.UTF_8), "Callback");
+            }, plugin.getExecutorService()).thenCompose(delivery -> delivery);
+        } catch (RejectedExecutionException e) {
+            // Пул переполнен (политика abort) или остановлен
+            return CompletableFuture.failedFuture(e);
+        }
     }
 
     /**
-     * Обрабатывает список купленных предметов
+     * Выдаёт купленные предметы: выполняет rcon команды каждого предмета
+     * Предметы, не оплаченные на стороне TradeMC (result = false), пропускаются
+     * Future завершается, когда все команды выполнены или сохранены в отложенные
      */
-    private void processItems(String buyerName, JsonArray items) {
-        for (JsonElement el : items) {
-            if (!el.isJsonObject()) continue;
-
-            JsonObject itemObj = el.getAsJsonObject();
-            String itemId = itemObj.has("id") ? itemObj.get("id").getAsString() : "UnknownID";
-            String itemName = itemObj.has("name") ? itemObj.get("name").getAsString() : "Item#" + itemId;
-            boolean result = itemObj.has("result") && itemObj.get("result").getAsBoolean();
-
-            if (!result) {
-                plugin.getLogger().warning("Item ID=" + itemId + " not delivered. Result: false");
+    private CompletableFuture<Void> deliverItems(long purchaseId, String buyerName, List<PurchaseItem> items) {
+        purchasesDelivered.increment();
+        List<CompletableFuture<Boolean>> commands = new ArrayList<>();
+        for (PurchaseItem item : items) {
+            if (!item.result()) {
+                plugin.getLogger().warning("Item ID=" + item.id() + " not delivered. Result: false");
                 continue;
             }
 
-            // Обработка команд из rcon
-            if (itemObj.has("rcon") && itemObj.get("rcon").isJsonArray()) {
-                JsonArray rconCommands = itemObj.get("rcon").getAsJsonArray();
-                for (JsonElement cmdElement : rconCommands) {
-                    if (cmdElement.isJsonArray()) {
-                        JsonArray cmdArray = cmdElement.getAsJsonArray();
-                        if (cmdArray.size() >= 1) {
-                            String command = cmdArray.get(0).getAsString();
-                            executeCommand(buyerName, command, itemName);
-                        }
-                    }
-                }
+            String itemName = item.displayName();
+            List<CompletableFuture<Boolean>> itemCommands = new ArrayList<>(item.commands().size());
+            for (String command : item.commands()) {
+                itemCommands.add(executeCommand(buyerName, command, purchaseId, item));
             }
+            commands.addAll(itemCommands);
+            logDonationWhenDelivered(purchaseId, buyerName, item, itemCommands);
+        }
+        return CompletableFuture.allOf(commands.toArray(new CompletableFuture<?>[0]));
+    }
 
-            // Дополнительная обработка, если необходимо
-            // Например, логирование, оповещения и т.д.
+    /**
+     * Записывает предмет в БД (одна строка на оплаченный предмет), когда все его команды завершены
+     * и хотя бы одна выполнена или отложена. Если все команды заблокированы или упали, запись не создаётся
+     */
+    private void logDonationWhenDelivered(long purchaseId, String buyerName, PurchaseItem item,
+                                          List<CompletableFuture<Boolean>> commands) {
+        CompletableFuture.allOf(commands.toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> {
+            boolean delivered = commands.stream().anyMatch(CompletableFuture::join);
+            if (delivered && plugin.getDatabaseManager().isEnabled()) {
+                plugin.getDatabaseManager().logDonation(purchaseId, buyerName, item);
+            }
+        }, pluginExecutor);
+    }
+
+    /**
+     * Пересобирает белый список команд из commands.allowed
+     */
+    public void reloadCommandWhitelist() {
+        List<String> allowed = plugin.getConfigManager().getSettings().allowedCommands();
+        List<String> sources = allowed != null ? allowed : DEFAULT_ALLOWED_COMMANDS;
+        List<String> rejected = new ArrayList<>();
+        commandWhitelist = CommandWhitelist.compile(sources, rejected);
+        for (String template : rejected) {
+            plugin.getLogger().warning("Некорректный шаблон команды в commands.allowed: " + template);
         }
+        plugin.getLogger().info("Разрешённых шаблонов команд: " + commandWhitelist.size());
     }
 
     /**
      * Выполняет команду от имени консоли
+     * Future завершается значением false, если команда заблокирована белым списком
      */
-    private void executeCommand(String buyer, String command, String itemName) {
-        String executedCommand = command.replace("%player%", buyer);
-        plugin.getLogger().info("Executing command for purchase: " + executedCommand);
-
-        // Проверяем, разрешена ли команда для выполнения
-        if (!ALLOWED_COMMANDS.contains(command)) {
+    private CompletableFuture<Boolean> executeCommand(String buyer, String command, long purchaseId, PurchaseItem item) {
+        // Сначала проверка по белому списку, подстановка только для разрешённых команд
+        String executedCommand = commandWhitelist.render(command.trim(), buyer);
+        if (executedCommand == null) {
+            commandsBlocked.increment();
             plugin.getLogger().warning("Попытка выполнения неразрешённой команды: " + command);
-            return;
+            return CompletableFuture.completedFuture(false);
         }
+        plugin.getLogger().info("Executing command for purchase: " + executedCommand);
+
+        return dispatch(buyer, new PendingDeliveryStore.Delivery(executedCommand, item.displayName(), purchaseId, item.id()));
+    }
 
-        plugin.getServer().getScheduler().runTask(plugin, () -> {
+    /**
+     * Передаёт команду в очередь основного потока
+     * Если покупатель не в сети, команда откладывается до его входа
+     * Future завершается после выполнения команды или сохранения отложенной команды на диск:
+     * true - команда выполнена или отложена, false - команда завершилась ошибкой
+     */
+    private CompletableFuture<Boolean> dispatch(String buyer, PendingDeliveryStore.Delivery delivery) {
+        String executedCommand = delivery.command();
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        // Команды выполняются пачками в основном потоке с ограничением времени на тик
+        plugin.getMainThreadDispatcher().submit(() -> {
+            // Проверка в основном потоке: вход игрока и выдача не могут пересечься
+            if (plugin.getConfigManager().getSettings().pending().deferOffline() && plugin.getServer().getPlayerExact(buyer) == null) {
+                // Запись на диск выполняет поток хранилища, основной поток не ждёт fsync
+                plugin.getConfigManager().getPendingDeliveries().add(buyer, delivery)
+                    .whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            done.completeExceptionally(error);
+                        } else {
+                            done.complete(true);
+                        }
+                    });
+                commandsDeferred.increment();
+                plugin.getLogger().info("Игрок " + buyer + " не в сети, выдача отложена до входа: " + executedCommand);
+                return;
+            }
+            boolean dispatched = false;
             try {
                 plugin.getServer().dispatchCommand(plugin.getServer().getConsoleSender(), executedCommand);
+                dispatched = true;
+                commandsDispatched.increment();
                 plugin.getLogger().info("Command executed successfully for player: " + buyer);
 
                 // Логирование и оповещение
-                logAndNotify(buyer, itemName);
+                logAndNotify(buyer, delivery);
             } catch (Exception e) {
+                // Повтор выполнил бы ту же команду, поэтому выдача считается завершённой
                 plugin.getLogger().severe("Error executing command for player " + buyer + ": " + e.getMessage());
                 e.printStackTrace();
+            } finally {
+                done.complete(dispatched);
             }
         });
+        return done;
     }
 
-    private void logAndNotify(String buyer, String itemName) {
-        // Логирование в файл
-        String logMessage = plugin.getConfigManager().getLocaleMsg("messages.purchase-log")
-            .replace("%buyer%", buyer)
-            .replace("%item%", itemName);
-        Utils.logToFile(plugin, logMessage);
-
-        // Запись в БД
-        if (plugin.getDatabaseManager().isEnabled()) {
-            plugin.getDatabaseManager().logDonation(buyer, itemName);
-        }
+    private void logAndNotify(String buyer, PendingDeliveryStore.Delivery delivery) {
+        // Логирование в файл без цветовых кодов (запись выполняет фоновый поток)
+        String logMessage = plugin.getConfigManager().getMessage("messages.purchase-log")
+            .renderPlain("%buyer%", buyer, "%item%", delivery.itemName());
+        plugin.getPurchaseLog().append(logMessage);
 
-        // Оповещение
-        String broadcastMsg = Utils.color(
-            plugin.getConfigManager().getLocaleMsg("messages.purchase-broadcast")
-                .replace("%buyer%", buyer)
-                .replace("%item%", itemName)
-        );
-
-        plugin.getServer().broadcastMessage(broadcastMsg);
+        // Оповещение: покупки игрока объединяются, общее число сообщений ограничено
+        plugin.getBroadcastAggregator().submit(buyer, delivery.purchaseId(), delivery.itemId(), delivery.itemName());
     }
 
     /**
-     * Отправляет запрос к API TradeMC
+     * Отправляет запрос к API TradeMC без блокировки вызывающего потока
+     * При ошибке сети future завершается JSON-объектом с полем error
      */
-    public String callTradeMcApi(String controller, String action, String params) {
-        HttpURLConnection con = null;
+    public CompletableFuture<String> callTradeMcApiAsync(String controller, String action, String params) {
+        HttpRequest request;
         try {
-            int apiVer = plugin.getConfig().getInt("api-version", 3);
-            String urlStr = "https://api.trademc.org/" + controller + "." + action + "?" + params + "&v=" + apiVer;
-            URL url = URI.create(urlStr).toURL();
-            con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-            con.setConnectTimeout(5000);
-            con.setReadTimeout(5000);
-
-            int status = con.getResponseCode();
-            try (BufferedReader in = new BufferedReader(
-                new InputStreamReader(
-                    (status >= 200 && status < 300) ? con.getInputStream() : con.getErrorStream(),
-                    StandardCharsets.UTF_8
-                )
-            )) {
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = in.readLine()) != null) {
-                    response.append(line);
-                }
-                return response.toString();
-            }
-        } catch (Exception e) {
-            return "{\"error\": {\"message\": \"" + e.getMessage() + "\"}}";
-        } finally {
-            if (con != null) {
-                con.disconnect();
-            }
+            int apiVer = plugin.getConfigManager().getSettings().apiVersion();
+            String urlStr = API_URL + controller + "." + action + "?" + params + "&v=" + apiVer;
+            request = HttpRequest.newBuilder(URI.create(urlStr))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Accept", "application/json")
+                .header("Accept-Encoding", "gzip")
+                .GET()
+                .build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(apiError(e));
         }
+
+        long start = System.nanoTime();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+            .whenComplete((response, error) -> apiLatency.recordSince(start))
+            .thenApply(this::decodeBody)
+            .exceptionally(this::apiError);
     }
 
     /**
-     * Парсит JSON строку в JsonElement
+     * Распаковывает тело ответа, если сервер отдал его в gzip
      */
-    private JsonElement parseJson(String json) {
-        return JsonParser.parseString(json);
+    private String decodeBody(HttpResponse<byte[]> response) {
+        byte[] body = response.body();
+        boolean gzip = response.headers().firstValue("Content-Encoding")
+            .map(enc -> enc.equalsIgnoreCase("gzip"))
+            .orElse(false);
+        if (gzip) {
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                body = in.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    private String apiError(Throwable error) {
+        apiErrors.increment();
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        JsonObject message = new JsonObject();
+        message.addProperty("message", String.valueOf(cause.getMessage()));
+        JsonObject json = new JsonObject();
+        json.add("error", message);
+        return json.toString();
     }
 
     /**
-     * Проверяет валидность хэша в callback запросе
+     * Проверяет подпись callback по исходным байтам запроса, до разбора JSON
      */
-    private boolean validateHash(JsonObject obj) {
-        if (!obj.has("hash")) return false;
-
-        String givenHash = obj.get("hash").getAsString();
-        obj.remove("hash");
-        String pureJson = obj.toString();
-
-        String shopKey = plugin.getConfig().getString("callback-key", "");
+    public boolean validateHash(byte[] body) {
+        String shopKey = plugin.getConfigManager().getSettings().callbackKey();
         if (shopKey.isEmpty()) {
             plugin.getLogger().warning("callback-key not set in config.yml!");
             return false;
         }
 
-        String calcHash = Utils.sha256(pureJson + shopKey);
-        return calcHash.equalsIgnoreCase(givenHash);
+        return CallbackSignature.verify(body, shopKey.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
-     * Обрабатывает ответ от API с покупками
+     * Обрабатывает тело callback с покупкой
+     * Возвращает future выдачи: после неё покупка записывается в журнал выданных,
+     * поэтому при сбое до завершения выдачи повтор из журнала callback её не пропустит
+     * Некорректное тело не может быть обработано и при повторе, такой callback считается завершённым
      */
-    private void processPurchasesResponse(String response, String mode) {
+    private CompletableFuture<Void> processPurchasesResponse(String response, String mode) {
+        long start = System.nanoTime();
+        PurchaseLedger ledger = plugin.getConfigManager().getProcessedPurchases();
+        long reservedId = Purchase.NO_ID;
         try {
-            JsonElement root = parseJson(response);
-            if (!root.isJsonObject()) {
-                plugin.getLogger().warning("[" + mode + "] Неверный формат JSON");
-                return;
-            }
-
-            JsonObject obj = root.getAsJsonObject();
+            Purchase purchase = PurchaseDecoder.decodeCallback(new StringReader(response));
 
-            // Проверяем хэш для callback режима
-            if (isCallbackEnabled && !validateHash(obj)) {
-                plugin.getLogger().warning("[" + mode + "] Неверная подпись callback");
-                return;
+            // Повторно присланный callback с id покупки не выдаётся второй раз
+            if (purchase.hasId()) {
+                if (!ledger.reserve(purchase.id())) {
+                    plugin.getLogger().info("[" + mode + "] Покупка #" + purchase.id() + " уже выдана, пропускаем");
+                    return CompletableFuture.completedFuture(null);
+                }
+                reservedId = purchase.id();
             }
 
-            // Разная обработка для callback и poll режимов
-            if (isCallbackEnabled) {
-                // Для callback проверяем items
-                if (obj.has("items") && obj.get("items").isJsonArray()) {
-                    String buyer = obj.has("buyer") ? obj.get("buyer").getAsString() : "";
-                    processItems(buyer, obj.get("items").getAsJsonArray());
-                }
-            } else {
-                // Для poll проверяем response
-                if (obj.has("response") && obj.get("response").isJsonArray()) {
-                    JsonArray purchases = obj.get("response").getAsJsonArray();
-                    for (JsonElement el : purchases) {
-                        if (el.isJsonObject()) {
-                            processSinglePurchase(el.getAsJsonObject(), mode);
-                        }
-                    }
-                }
+            CompletableFuture<Void> delivery = deliverItems(purchase.id(), purchase.buyer(), purchase.items());
+            if (reservedId == Purchase.NO_ID) {
+                return delivery;
             }
+            return commitWhenDelivered(delivery, reservedId, mode);
         } catch (Exception e) {
+            if (reservedId != Purchase.NO_ID) {
+                ledger.release(reservedId);
+            }
             plugin.getLogger().severe("[" + mode + "] Ошибка обработки ответа: " + e.getMessage());
             e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
+        } finally {
+            processLatency.recordSince(start);
         }
     }
 
     /**
-     * Обрабатывает одну покупку
+     * Обрабатывает ответ getLastPurchases начиная с курсора магазина
+     * Покупки с id не больше курсора пропускаются без полного разбора
+     * Возвращает количество новых покупок или -1 при ошибке разбора
      */
-    private void processSinglePurchase(JsonObject purchase, String mode) {
+    private int processPollResponse(String shopId, String response) {
+        long start = System.nanoTime();
         try {
-            String buyer = purchase.has("buyer") ? purchase.get("buyer").getAsString().toLowerCase() : "";
-            JsonObject itemObj = purchase.has("item") ? purchase.get("item").getAsJsonObject() : null;
+            return processPollPage(shopId, response);
+        } finally {
+            processLatency.recordSince(start);
+        }
+    }
+
+    private int processPollPage(String shopId, String response) {
+        long cursor = plugin.getConfigManager().getPollCursor(shopId);
+        PurchaseLedger ledger = plugin.getConfigManager().getProcessedPurchases();
 
-            if (itemObj == null || buyer.isEmpty()) {
+        PurchaseDecoder.PollPage page;
+        try {
+            page = PurchaseDecoder.decodePoll(new StringReader(response), cursor, ledger::isDelivered);
+        } catch (Exception e) {
+            plugin.getLogger().severe("[Poll] Ошибка обработки ответа: " + e.getMessage());
+            e.printStackTrace();
+            return -1;
+        }
+
+        List<Purchase> fresh = new ArrayList<>(page.purchases());
+        List<CompletableFuture<Void>> deliveries = new ArrayList<>(fresh.size());
+        if (!fresh.isEmpty()) {
+            plugin.getLogger().info("[Poll] Новых покупок: " + fresh.size());
+            // Выдаём в порядке совершения покупок (порядок в ответе API не гарантирован)
+            fresh.sort(Comparator.comparingLong(Purchase::id));
+            for (Purchase purchase : fresh) {
+                deliveries.add(processSinglePurchase(purchase, "Poll"));
+            }
+        }
+
+        // Курсор сдвигается только после выдачи всех новых покупок: при сбое раньше
+        // следующий опрос снова получит их, а журнал выданных отсеет уже выданные
+        if (page.newestId() > cursor) {
+            CompletableFuture.allOf(deliveries.toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(() -> plugin.getConfigManager().updatePollCursor(shopId, page.newestId(), page.newestTime()), pluginExecutor)
+                .exceptionally(error -> {
+                    plugin.getLogger().warning("[Poll] Курсор не сдвинут, покупки будут запрошены повторно: " + error.getMessage());
+                    return null;
+                });
+        }
+        return fresh.size();
+    }
+
+    /**
+     * Обрабатывает одну покупку
+     * Покупка резервируется в журнале выданных и сохраняется в нём только после выдачи,
+     * поэтому при сбое до выполнения команд следующий опрос выдаст её снова
+     * Future завершается исключением, если выдачу не удалось выполнить или сохранить
+     */
+    private CompletableFuture<Void> processSinglePurchase(Purchase purchase, String mode) {
+        PurchaseLedger ledger = plugin.getConfigManager().getProcessedPurchases();
+        long reservedId = Purchase.NO_ID;
+        try {
+            String buyer = purchase.buyer().toLowerCase();
+            if (purchase.items().isEmpty() || buyer.isEmpty()) {
                 plugin.getLogger().warning("[" + mode + "] Неполные данные покупки");
-                return;
+                return CompletableFuture.completedFuture(null);
             }
 
-            String itemId = itemObj.has("id") ? itemObj.get("id").getAsString() : "";
-            String itemName = itemObj.has("name") ? itemObj.get("name").getAsString() : itemId;
-
-            // Обработка команд из rcon
-            if (itemObj.has("rcon") && itemObj.get("rcon").isJsonArray()) {
-                JsonArray rconCommands = itemObj.get("rcon").getAsJsonArray();
-                for (JsonElement cmdElement : rconCommands) {
-                    if (cmdElement.isJsonArray()) {
-                        JsonArray cmdArray = cmdElement.getAsJsonArray();
-                        if (cmdArray.size() >= 1) {
-                            String command = cmdArray.get(0).getAsString();
-                            executeCommand(buyer, command, itemName);
-                        }
-                    }
+            // Пропускаем уже выданные покупки, иначе каждый опрос повторяет rcon команды
+            if (purchase.hasId()) {
+                if (!ledger.reserve(purchase.id())) {
+                    return CompletableFuture.completedFuture(null);
                 }
+                reservedId = purchase.id();
+                plugin.getLogger().info("[" + mode + "] Новая покупка #" + purchase.id() + " от " + buyer);
             }
 
-            // Дополнительная обработка, если необходимо
-            // Например, логирование, оповещения и т.д.
-
+            CompletableFuture<Void> delivery = deliverItems(purchase.id(), buyer, purchase.items());
+            if (reservedId == Purchase.NO_ID) {
+                return delivery;
+            }
+            return commitWhenDelivered(delivery, reservedId, mode);
         } catch (Exception e) {
+            if (reservedId != Purchase.NO_ID) {
+                ledger.release(reservedId);
+            }
             plugin.getLogger().severe("[" + mode + "] Ошибка обработки покупки: " + e.getMessage());
             e.printStackTrace();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * После завершения выдачи сохраняет зарезервированную покупку как выданную,
+     * при ошибке снимает резерв, чтобы покупку можно было выдать повторно
+     * Отметка пишется с fsync, поэтому не в основном потоке, где завершаются команды
+     */
+    private CompletableFuture<Void> commitWhenDelivered(CompletableFuture<Void> delivery, long id, String mode) {
+        PurchaseLedger ledger = plugin.getConfigManager().getProcessedPurchases();
+        return delivery.handleAsync((ignored, error) -> {
+            if (error != null) {
+                ledger.release(id);
+                plugin.getLogger().severe("[" + mode + "] Покупка #" + id + " не сохранена для выдачи: " + error.getMessage());
+                throw new CompletionException(error);
+            }
+            ledger.commit(id);
+            return null;
+        }, pluginExecutor);
+    }
+
+    /**
+     * Ставит игрока в очередь выдачи отложенных покупок
+     * Входы в пределах pending.join-batch-ticks (например, массовый перезаход после рестарта)
+     * обрабатываются одной асинхронной задачей
+     */
+    public void schedulePendingPurchases(String playerName) {
+        joinQueue.add(playerName);
+        if (joinDrainScheduled.compareAndSet(false, true)) {
+            plugin.getServer().getScheduler().runTaskLaterAsynchronously(plugin, this::drainJoinQueue,
+                plugin.getConfigManager().getSettings().pending().joinBatchTicks());
         }
     }
 
+    private void drainJoinQueue() {
+        // Флаг снимается до чтения очереди: игрок, вошедший во время обработки, запустит новую задачу
+        joinDrainScheduled.set(false);
+        List<String> players = new ArrayList<>(joinQueue);
+        joinQueue.removeAll(players);
+        processPendingPurchases(players);
+    }
+
     /**
-     * Обрабатывает ожидающие покупки при входе игрока
+     * Выдаёт отложенные покупки вошедшим игрокам
+     * Команды забираются из хранилища одной операцией, поэтому не выполнятся дважды,
+     * а с диска снимаются только после выполнения (или повторного откладывания) всех команд игрока
      */
-    public void processPendingPurchases(String playerName) {
-        List<String> items = plugin.getConfigManager().getPendingPurchases().get(playerName);
-        if (items != null && !items.isEmpty()) {
-            for (String itemId : new ArrayList<>(items)) {
-                // В данном случае, команды уже отправляются через callback, поэтому можно просто убрать запись из pendingPurchases
-                items.remove(itemId);
-                plugin.getLogger().info("Processed pending donation '" + itemId + "' for player " + playerName);
+    public void processPendingPurchases(Collection<String> playerNames) {
+        PendingDeliveryStore store = plugin.getConfigManager().getPendingDeliveries();
+        Map<String, List<PendingDeliveryStore.Delivery>> taken = store.take(playerNames);
+        for (Map.Entry<String, List<PendingDeliveryStore.Delivery>> entry : taken.entrySet()) {
+            String playerName = entry.getKey();
+            List<PendingDeliveryStore.Delivery> deliveries = entry.getValue();
+            plugin.getLogger().info("Выдача отложенных покупок игроку " + playerName + ": " + deliveries.size());
+            List<CompletableFuture<Boolean>> commands = new ArrayList<>(deliveries.size());
+            for (PendingDeliveryStore.Delivery delivery : deliveries) {
+                commands.add(dispatch(playerName, delivery));
             }
-            plugin.getConfigManager().saveAll();
+            CompletableFuture.allOf(commands.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    // Команда снова отложена, но не сохранена: пачка остаётся в файле и выдастся после перезапуска
+                    plugin.getLogger().warning("Отложенные выдачи игрока " + playerName
+                        + " не подтверждены и останутся в файле до перезапуска: " + error.getMessage());
+                    return;
+                }
+                store.markDelivered(playerName, deliveries);
+            });
         }
     }
 }
\ No newline at end of file
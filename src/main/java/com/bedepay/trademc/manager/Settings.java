@@ -0,0 +1,212 @@
+package com.bedepay.trademc.manager;
+
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.List;
+
+/**
+ * Неизменяемый снимок настроек из config.yml
+ * Собирается в основном потоке при загрузке и /trademc reload, затем публикуется целиком
+ * через volatile ссылку в ConfigManager. Асинхронные потоки читают только снимок,
+ * не обращаясь к FileConfiguration, который в момент reload может перезаписываться
+ */
+public record Settings(
+    String shopId,
+    String callbackKey,
+    int apiVersion,
+    Polling polling,
+    Callback callback,
+    Pending pending,
+    Metrics metrics,
+    Executor executor,
+    Dispatch dispatch,
+    Broadcast broadcast,
+    Logging logging,
+    Mysql mysql,
+    List<String> allowedCommands // null, если в config.yml нет commands.allowed
+) {
+    /**
+     * Параметры опроса API (режим Poll)
+     */
+    public record Polling(
+        int intervalSeconds,
+        int minIntervalSeconds,
+        int maxIntervalSeconds,
+        int retryDelaySeconds,
+        int maxBackoffSeconds,
+        int retryAttempts
+    ) {}
+
+    /**
+     * Параметры HTTP сервера callback
+     */
+    public record Callback(
+        boolean enabled,
+        String host,
+        int port,
+        String path,
+        int backlog,
+        int maxBodyBytes,
+        boolean debug,
+        int drainSeconds,
+        Executor executor
+    ) {
+        /**
+         * Совпадает ли адрес прослушивания (изменение требует нового сокета)
+         */
+        public boolean sameBinding(Callback other) {
+            return host.equals(other.host) && port == other.port && backlog == other.backlog;
+        }
+    }
+
+    /**
+     * Параметры отложенной выдачи игрокам не в сети
+     */
+    public record Pending(boolean deferOffline, int joinBatchTicks) {}
+
+    /**
+     * Параметры выдачи метрик в формате Prometheus
+     * Путь регистрируется на callback сервере, а если callback выключен - на отдельном host:port
+     */
+    public record Metrics(boolean prometheus, String path, String host, int port) {}
+
+    /**
+     * Параметры исполнителя задач (секции executor и callback.executor)
+     */
+    public record Executor(boolean virtual, int threads, int queueSize, boolean callerRuns) {}
+
+    /**
+     * Бюджет времени основного потока на команды выдачи за тик
+     */
+    public record Dispatch(double tickBudgetMillis) {}
+
+    /**
+     * Объединение и ограничение оповещений о покупках
+     */
+    public record Broadcast(boolean enabled, long windowMillis, int maxItems, int maxPerMinute) {}
+
+    /**
+     * Лог покупок logs/purchases.log
+     */
+    public record Logging(
+        boolean enabled,
+        long maxFileBytes,
+        boolean rotateDaily,
+        boolean compress,
+        int maxHistory,
+        long flushIntervalMillis,
+        int historySize
+    ) {}
+
+    /**
+     * Подключение к MySQL и фоновая запись донатов
+     */
+    public record Mysql(
+        boolean enabled,
+        String host,
+        int port,
+        String database,
+        String user,
+        String password,
+        int batchSize,
+        int flushIntervalMillis,
+        int queueCapacity,
+        int poolMaxSize,
+        long maxLifetimeMillis,
+        long validateAfterIdleMillis,
+        long acquireTimeoutMillis,
+        int prepStmtCacheSize
+    ) {}
+
+    public static Settings fromConfig(FileConfiguration config) {
+        Polling polling = new Polling(
+            config.getInt("check-interval-seconds", 60),
+            config.getInt("polling.min-interval-seconds", 15),
+            config.getInt("polling.max-interval-seconds", 300),
+            config.getInt("retry-delay-seconds", 5),
+            config.getInt("polling.max-backoff-seconds", 600),
+            config.getInt("retry-attempts", 3));
+        Callback callback = new Callback(
+            config.getBoolean("callback.enabled", false),
+            config.getString("callback.host", "0.0.0.0"),
+            config.getInt("callback.port", 8080),
+            config.getString("callback.path", "/tradecallback"),
+            Math.max(1, config.getInt("callback.backlog", 64)),
+            Math.max(1024, config.getInt("callback.max-body-bytes", 65536)),
+            config.getBoolean("callback.debug", false),
+            Math.max(0, config.getInt("callback.drain-seconds", 5)),
+            readExecutor(config, "callback.executor"));
+        Pending pending = new Pending(
+            config.getBoolean("pending.defer-offline", true),
+            Math.max(1, config.getInt("pending.join-batch-ticks", 20)));
+        Metrics metrics = new Metrics(
+            config.getBoolean("metrics.prometheus", false),
+            config.getString("metrics.path", "/metrics"),
+            config.getString("metrics.host", "127.0.0.1"),
+            config.getInt("metrics.port", 9225));
+        Dispatch dispatch = new Dispatch(
+            Math.max(0.1, config.getDouble("dispatch.tick-budget-ms", 2.0)));
+        Broadcast broadcast = new Broadcast(
+            config.getBoolean("broadcast.enabled", true),
+            Math.max(0, config.getLong("broadcast.window-ms", 1500)),
+            Math.max(1, config.getInt("broadcast.max-items", 3)),
+            Math.max(1, config.getInt("broadcast.max-per-minute", 12)));
+        Logging logging = new Logging(
+            config.getBoolean("logging.enabled", true),
+            Math.max(1, config.getLong("logging.max-file-size-kb", 1024)) * 1024L,
+            config.getBoolean("logging.rotate-daily", true),
+            config.getBoolean("logging.compress", true),
+            Math.max(0, config.getInt("logging.max-history", 30)),
+            Math.max(10, config.getLong("logging.flush-interval-ms", 1000)),
+            config.getInt("logging.history-size", 500));
+        int batchSize = Math.max(1, config.getInt("mysql.batch-size", 100));
+        Mysql mysql = new Mysql(
+            config.getBoolean("mysql.enabled", false),
+            config.getString("mysql.host", "localhost"),
+            config.getInt("mysql.port", 3306),
+            config.getString("mysql.database", "trade_db"),
+            config.getString("mysql.user", "root"),
+            config.getString("mysql.password", "password"),
+            batchSize,
+            Math.max(10, config.getInt("mysql.flush-interval-ms", 1000)),
+            Math.max(batchSize, config.getInt("mysql.queue-capacity", 10000)),
+            config.getInt("mysql.pool.max-size", 4),
+            config.getLong("mysql.pool.max-lifetime-ms", 1_800_000L),
+            config.getLong("mysql.pool.validate-after-idle-ms", 30_000L),
+            config.getLong("mysql.pool.acquire-timeout-ms", 5_000L),
+            config.getInt("mysql.pool.prep-stmt-cache-size", 64));
+        List<String> allowedCommands = config.isList("commands.allowed")
+            ? List.copyOf(config.getStringList("commands.allowed"))
+            : null;
+
+        return new Settings(
+            config.getString("shops", "0"),
+            config.getString("callback-key", ""),
+            config.getInt("api-version", 3),
+            polling,
+            callback,
+            pending,
+            metrics,
+            readExecutor(config, "executor"),
+            dispatch,
+            broadcast,
+            logging,
+            mysql,
+            allowedCommands);
+    }
+
+    private static Executor readExecutor(FileConfiguration config, String section) {
+        return new Executor(
+            "virtual".equalsIgnoreCase(config.getString(section + ".type", "pool")),
+            Math.max(1, config.getInt(section + ".threads", 4)),
+            Math.max(1, config.getInt(section + ".queue-size", 256)),
+            "caller-runs".equalsIgnoreCase(config.getString(section + ".rejection-policy", "abort")));
+    }
+
+    /**
+     * Указан ли ID магазина
+     */
+    public boolean isShopIdValid() {
+        return !shopId.equals("0") && !shopId.isEmpty();
+    }
+}
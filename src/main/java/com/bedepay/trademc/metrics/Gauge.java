@@ -0,0 +1,44 @@
+package com.bedepay.trademc.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Текущее значение, вычисляемое при чтении (глубина очереди, активные потоки)
+ */
+public final class Gauge extends Metric {
+    private volatile DoubleSupplier supplier;
+
+    Gauge(String name, String help, DoubleSupplier supplier) {
+        super(name, help);
+        this.supplier = supplier;
+    }
+
+    void setSupplier(DoubleSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    public double get() {
+        try {
+            return supplier.getAsDouble();
+        } catch (RuntimeException e) {
+            return Double.NaN; // Компонент остановлен или ещё не создан
+        }
+    }
+
+    @Override
+    public String getType() {
+        return "gauge";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        out.append(getName()).append(' ');
+        double value = get();
+        if (Double.isNaN(value)) {
+            out.append("NaN");
+        } else {
+            appendValue(out, value);
+        }
+        out.append('\n');
+    }
+}
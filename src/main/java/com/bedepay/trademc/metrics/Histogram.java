@@ -0,0 +1,107 @@
+package com.bedepay.trademc.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма задержек с фиксированными границами корзин
+ * Запись - поиск корзины и инкремент LongAdder, без блокировок и выделения памяти
+ * Значения хранятся в наносекундах, наружу отдаются в секундах (Prometheus) или миллисекундах
+ */
+public final class Histogram extends Metric {
+    // Верхние границы корзин, мс: от быстрых операций в памяти до таймаута HTTP запроса
+    private static final double[] BOUNDS_MILLIS = {1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS_MILLIS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS_MILLIS[i] * 1_000_000L);
+        }
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1]; // Последняя - +Inf
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram(String name, String help) {
+        super(name, help);
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Записывает длительность операции
+     */
+    public void record(long nanos) {
+        int i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Записывает время с момента startNanos (значение System.nanoTime())
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanMillis() {
+        long n = count.sum();
+        return n == 0 ? 0.0 : sumNanos.sum() / (double) n / 1_000_000.0;
+    }
+
+    /**
+     * Оценка квантиля по границам корзин, мс (верхняя граница корзины, в которую он попал)
+     * Для значений больше последней границы возвращает бесконечность
+     */
+    public double getQuantileMillis(double quantile) {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) return 0.0;
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return BOUNDS_MILLIS[i];
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public String getType() {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(StringBuilder out) {
+        // Корзины в Prometheus накопительные; count берётся из суммы корзин, чтобы совпадать с +Inf
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            out.append(getName()).append("_bucket{le=\"");
+            if (i < BOUNDS_MILLIS.length) {
+                appendValue(out, BOUNDS_MILLIS[i] / 1000.0);
+            } else {
+                out.append("+Inf");
+            }
+            out.append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(getName()).append("_sum ");
+        appendValue(out, sumNanos.sum() / 1_000_000_000.0);
+        out.append('\n');
+        out.append(getName()).append("_count ").append(cumulative).append('\n');
+    }
+}
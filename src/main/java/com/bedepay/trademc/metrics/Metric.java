@@ -0,0 +1,40 @@
+package com.bedepay.trademc.metrics;
+
+/**
+ * Именованная метрика реестра
+ */
+public abstract class Metric {
+    private final String name;
+    private final String help;
+
+    protected Metric(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    /**
+     * Тип метрики в формате Prometheus: counter, gauge или histogram
+     */
+    public abstract String getType();
+
+    /**
+     * Дописывает строки значений в текстовом формате Prometheus (без HELP и TYPE)
+     */
+    abstract void writeSamples(StringBuilder out);
+
+    static void appendValue(StringBuilder out, double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+    }
+}
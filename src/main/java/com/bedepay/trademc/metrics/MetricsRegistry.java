@@ -0,0 +1,71 @@
+package com.bedepay.trademc.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Реестр метрик плагина
+ * Метрики регистрируются один раз при создании компонентов (повторная регистрация возвращает
+ * существующую метрику), запись в счётчики и гистограммы идёт без блокировок.
+ * Снимок списка метрик для вывода /trademc stats и /metrics заменяется целиком при регистрации
+ */
+public final class MetricsRegistry {
+    private final Map<String, Metric> byName = new LinkedHashMap<>();
+    private volatile List<Metric> metrics = List.of();
+
+    public Counter counter(String name, String help) {
+        return register(name, Counter.class, () -> new Counter(name, help));
+    }
+
+    public Histogram histogram(String name, String help) {
+        return register(name, Histogram.class, () -> new Histogram(name, help));
+    }
+
+    /**
+     * Регистрирует показатель, при повторной регистрации заменяется источник значения
+     * (например, после пересоздания компонента при /trademc reload)
+     */
+    public synchronized Gauge gauge(String name, String help, DoubleSupplier supplier) {
+        Gauge gauge = register(name, Gauge.class, () -> new Gauge(name, help, supplier));
+        gauge.setSupplier(supplier);
+        return gauge;
+    }
+
+    /**
+     * Все метрики в порядке регистрации
+     */
+    public List<Metric> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Выводит все метрики в текстовом формате Prometheus 0.0.4
+     */
+    public void writePrometheus(StringBuilder out) {
+        for (Metric metric : metrics) {
+            out.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+            out.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+            metric.writeSamples(out);
+        }
+    }
+
+    private synchronized <T extends Metric> T register(String name, Class<T> type, Supplier<T> factory) {
+        Metric existing = byName.get(name);
+        if (existing != null) {
+            if (!type.isInstance(existing)) {
+                throw new IllegalArgumentException("Метрика " + name + " уже зарегистрирована как " + existing.getType());
+            }
+            return type.cast(existing);
+        }
+        T metric = factory.get();
+        byName.put(name, metric);
+        List<Metric> updated = new ArrayList<>(byName.values());
+        metrics = Collections.unmodifiableList(updated);
+        return metric;
+    }
+}
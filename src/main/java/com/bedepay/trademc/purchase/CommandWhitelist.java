@@ -0,0 +1,220 @@
+package com.bedepay.trademc.purchase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Белый список команд выдачи, собранный из шаблонов config.yml (commands.allowed)
+ * Шаблон разбирается один раз на литералы и типизированные подстановки:
+ * %player% - ник покупателя (в команде может стоять как есть или уже подставленным),
+ * %amount% - целое число, %item% - id предмета вида minecraft:diamond
+ * Шаблоны индексируются по первому слову команды, проверка не создаёт объектов
+ */
+public final class CommandWhitelist {
+    private static final byte SLOT_PLAYER = 1;
+    private static final byte SLOT_AMOUNT = 2;
+    private static final byte SLOT_ITEM = 3;
+    private static final String PLAYER = "%player%";
+    private static final String AMOUNT = "%amount%";
+    private static final String ITEM = "%item%";
+    private static final int MAX_PLAYER_NAME = 16;
+    private static final int MAX_AMOUNT_DIGITS = 9;
+
+    /**
+     * Скомпилированный шаблон: literals[i] стоит перед slots[i], literals[slots.length] - хвост
+     */
+    private static final class Template {
+        final String head;      // Первое слово (имя команды)
+        final String[] literals;
+        final byte[] slots;
+
+        Template(String head, String[] literals, byte[] slots) {
+            this.head = head;
+            this.literals = literals;
+            this.slots = slots;
+        }
+    }
+
+    private final Template[][] buckets;
+    private final int mask;
+    private final int size;
+
+    private CommandWhitelist(List<Template> templates) {
+        int capacity = Integer.highestOneBit(Math.max(4, templates.size() * 2) - 1) << 1;
+        this.mask = capacity - 1;
+        this.size = templates.size();
+        Template[][] table = new Template[capacity][];
+        for (Template template : templates) {
+            int index = hash(template.head, 0, template.head.length()) & mask;
+            Template[] bucket = table[index];
+            if (bucket == null) {
+                table[index] = new Template[]{template};
+            } else {
+                bucket = Arrays.copyOf(bucket, bucket.length + 1);
+                bucket[bucket.length - 1] = template;
+                table[index] = bucket;
+            }
+        }
+        this.buckets = table;
+    }
+
+    /**
+     * Компилирует шаблоны, некорректные попадают в rejected с причиной
+     */
+    public static CommandWhitelist compile(List<String> sources, List<String> rejected) {
+        List<Template> templates = new ArrayList<>(sources.size());
+        for (String source : sources) {
+            if (source == null || source.isBlank()) continue;
+            String trimmed = source.trim();
+            int space = trimmed.indexOf(' ');
+            String head = space < 0 ? trimmed : trimmed.substring(0, space);
+            if (head.indexOf('%') >= 0) {
+                rejected.add(source + " (имя команды не может быть подстановкой)");
+                continue;
+            }
+
+            List<String> literals = new ArrayList<>();
+            List<Byte> slots = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            int i = 0;
+            while (i < trimmed.length()) {
+                byte slot = slotAt(trimmed, i);
+                if (slot != 0) {
+                    if (!slots.isEmpty() && literal.length() == 0) {
+                        rejected.add(source + " (подстановки должны разделяться текстом)");
+                        literals = null;
+                        break;
+                    }
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    slots.add(slot);
+                    i += slotLength(slot);
+                } else {
+                    literal.append(trimmed.charAt(i++));
+                }
+            }
+            if (literals == null) continue;
+            literals.add(literal.toString());
+
+            byte[] slotArray = new byte[slots.size()];
+            for (int k = 0; k < slotArray.length; k++) {
+                slotArray[k] = slots.get(k);
+            }
+            templates.add(new Template(head, literals.toArray(new String[0]), slotArray));
+        }
+        return new CommandWhitelist(templates);
+    }
+
+    /**
+     * Проверяет команду и собирает итоговую строку: %player% заменяется ником покупателя,
+     * остальные подстановки копируются из команды. Возвращает null, если команда не разрешена
+     */
+    public String render(String command, String player) {
+        Template template = find(command);
+        if (template == null) return null;
+
+        StringBuilder out = new StringBuilder(command.length() + MAX_PLAYER_NAME);
+        int pos = 0;
+        for (int i = 0; i < template.slots.length; i++) {
+            String literal = template.literals[i];
+            out.append(literal);
+            pos += literal.length();
+            int end = slotEnd(command, pos, template.slots[i]);
+            if (template.slots[i] == SLOT_PLAYER) {
+                out.append(player);
+            } else {
+                out.append(command, pos, end);
+            }
+            pos = end;
+        }
+        out.append(template.literals[template.slots.length]);
+        return out.toString();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private Template find(String command) {
+        int space = command.indexOf(' ');
+        int headEnd = space < 0 ? command.length() : space;
+        Template[] bucket = buckets[hash(command, 0, headEnd) & mask];
+        if (bucket == null) return null;
+        for (Template template : bucket) {
+            if (template.head.length() == headEnd && command.startsWith(template.head) && matches(template, command)) {
+                return template;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(Template template, String command) {
+        int pos = 0;
+        int length = command.length();
+        for (int i = 0; i < template.slots.length; i++) {
+            String literal = template.literals[i];
+            if (!command.startsWith(literal, pos)) return false;
+            pos += literal.length();
+            int end = slotEnd(command, pos, template.slots[i]);
+            if (end <= pos) return false;
+            pos = end;
+        }
+        String tail = template.literals[template.slots.length];
+        return pos + tail.length() == length && command.startsWith(tail, pos);
+    }
+
+    /**
+     * Конец значения подстановки, начинающегося в pos, или pos если значение некорректно
+     */
+    private static int slotEnd(String command, int pos, byte slot) {
+        if (slot == SLOT_PLAYER && command.startsWith(PLAYER, pos)) {
+            return pos + PLAYER.length();
+        }
+        int end = pos;
+        int length = command.length();
+        while (end < length && accepts(slot, command.charAt(end))) {
+            end++;
+        }
+        int width = end - pos;
+        if (slot == SLOT_PLAYER && width > MAX_PLAYER_NAME) return pos;
+        if (slot == SLOT_AMOUNT && width > MAX_AMOUNT_DIGITS) return pos;
+        return end;
+    }
+
+    private static boolean accepts(byte slot, char c) {
+        boolean alnum = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+        switch (slot) {
+            case SLOT_PLAYER:
+                return alnum || c == '_';
+            case SLOT_AMOUNT:
+                return c >= '0' && c <= '9';
+            case SLOT_ITEM:
+                return alnum || c == '_' || c == ':' || c == '.' || c == '-';
+            default:
+                return false;
+        }
+    }
+
+    private static byte slotAt(String source, int i) {
+        if (source.startsWith(PLAYER, i)) return SLOT_PLAYER;
+        if (source.startsWith(AMOUNT, i)) return SLOT_AMOUNT;
+        if (source.startsWith(ITEM, i)) return SLOT_ITEM;
+        return 0;
+    }
+
+    private static int slotLength(byte slot) {
+        return slot == SLOT_PLAYER ? PLAYER.length() : slot == SLOT_AMOUNT ? AMOUNT.length() : ITEM.length();
+    }
+
+    /**
+     * Хэш участка строки, совпадает с String.hashCode для подстроки
+     */
+    private static int hash(String s, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+}
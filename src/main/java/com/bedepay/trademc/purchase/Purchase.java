@@ -0,0 +1,19 @@
+package com.bedepay.trademc.purchase;
+
+import java.util.List;
+
+/**
+ * Покупка TradeMC: покупатель и купленные предметы
+ * В режиме Poll покупка содержит один предмет, в callback - список items
+ */
+public record Purchase(long id, String buyer, long time, List<PurchaseItem> items) {
+    public static final long NO_ID = -1L;
+
+    public Purchase {
+        items = List.copyOf(items);
+    }
+
+    public boolean hasId() {
+        return id != NO_ID;
+    }
+}
@@ -0,0 +1,305 @@
+package com.bedepay.trademc.purchase;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+/**
+ * Потоковый декодер покупок TradeMC на основе Gson JsonReader
+ * Читает JSON без построения дерева JsonElement и сразу создаёт записи Purchase
+ */
+public final class PurchaseDecoder {
+
+    /**
+     * Результат разбора ответа getLastPurchases
+     * purchases - новые покупки в порядке ответа API,
+     * newestId/newestTime - самая новая покупка после курсора, включая пропущенные
+     */
+    public record PollPage(List<Purchase> purchases, long newestId, long newestTime) {}
+
+    private PurchaseDecoder() {
+    }
+
+    /**
+     * Разбирает тело callback: {"buyer": ..., "items": [...]}
+     * Предмет без поля result считается не выданным
+     */
+    public static Purchase decodeCallback(Reader in) throws IOException {
+        try (JsonReader reader = new JsonReader(in)) {
+            long id = Purchase.NO_ID;
+            long time = 0L;
+            String buyer = "";
+            List<PurchaseItem> items = Collections.emptyList();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "id":
+                        id = nextLong(reader, Purchase.NO_ID);
+                        break;
+                    case "buyer":
+                        buyer = nextString(reader, "");
+                        break;
+                    case "time":
+                        time = nextLong(reader, 0L);
+                        break;
+                    case "items":
+                        items = readItems(reader, false);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            return new Purchase(id, buyer, time, items);
+        }
+    }
+
+    /**
+     * Разбирает ответ getLastPurchases: {"response": [{"id", "buyer", "time", "item"}, ...]}
+     * Порядок покупок в ответе не гарантируется, поэтому ответ читается целиком: покупки с id
+     * не больше cursor и покупки, для которых skip возвращает true, пропускаются без разбора
+     * остальных полей (как только известен id)
+     */
+    public static PollPage decodePoll(Reader in, long cursor, LongPredicate skip) throws IOException {
+        List<Purchase> purchases = new ArrayList<>();
+        long newestId = cursor;
+        long newestTime = 0L;
+
+        try (JsonReader reader = new JsonReader(in)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"response".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+
+                    PollEntry entry = readPollEntry(reader, cursor, skip);
+                    if (entry.id != Purchase.NO_ID && entry.id <= cursor) {
+                        continue; // Уже обработана, дальше могут идти более новые покупки
+                    }
+                    if (entry.id > newestId) {
+                        newestId = entry.id;
+                        newestTime = entry.time;
+                    }
+                    if (entry.purchase != null) {
+                        purchases.add(entry.purchase);
+                    }
+                }
+                break;
+            }
+        }
+        return new PollPage(purchases, newestId, newestTime);
+    }
+
+    /**
+     * Читает одну покупку из ответа poll
+     * Если id известен до предмета и покупка уже обработана - остаток объекта пропускается
+     */
+    private static PollEntry readPollEntry(JsonReader reader, long cursor, LongPredicate skip) throws IOException {
+        PollEntry entry = new PollEntry();
+        String buyer = "";
+        PurchaseItem item = null;
+        boolean skipped = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipped) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    entry.id = nextLong(reader, Purchase.NO_ID);
+                    skipped = entry.id != Purchase.NO_ID && (entry.id <= cursor || skip.test(entry.id));
+                    break;
+                case "buyer":
+                    buyer = nextString(reader, "");
+                    break;
+                case "time":
+                    entry.time = nextLong(reader, 0L);
+                    break;
+                case "item":
+                    item = reader.peek() == JsonToken.BEGIN_OBJECT ? readItem(reader, true) : skip(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (!skipped) {
+            List<PurchaseItem> items = item != null ? List.of(item) : Collections.emptyList();
+            entry.purchase = new Purchase(entry.id, buyer, entry.time, items);
+        }
+        return entry;
+    }
+
+    private static List<PurchaseItem> readItems(JsonReader reader, boolean defaultResult) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return Collections.emptyList();
+        }
+
+        List<PurchaseItem> items = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                items.add(readItem(reader, defaultResult));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        return items;
+    }
+
+    private static PurchaseItem readItem(JsonReader reader, boolean defaultResult) throws IOException {
+        String id = "";
+        String name = null;
+        double cost = 0.0;
+        boolean result = defaultResult;
+        List<String> commands = Collections.emptyList();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    id = nextString(reader, "");
+                    break;
+                case "name":
+                    name = nextString(reader, null);
+                    break;
+                case "cost":
+                    cost = nextDouble(reader, 0.0);
+                    break;
+                case "result":
+                    result = nextBoolean(reader, defaultResult);
+                    break;
+                case "rcon":
+                    commands = readCommands(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return new PurchaseItem(id, name, cost, result, commands);
+    }
+
+    /**
+     * rcon - массив пар [команда, ожидаемый ответ], нужна только команда
+     */
+    private static List<String> readCommands(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return Collections.emptyList();
+        }
+
+        List<String> commands = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            if (reader.hasNext()) {
+                String command = nextString(reader, null);
+                if (command != null) {
+                    commands.add(command);
+                }
+            }
+            while (reader.hasNext()) {
+                reader.skipValue();
+            }
+            reader.endArray();
+        }
+        reader.endArray();
+        return commands;
+    }
+
+    private static String nextString(JsonReader reader, String fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(reader.nextBoolean());
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+    private static long nextLong(JsonReader reader, long fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            try {
+                return reader.nextLong();
+            } catch (NumberFormatException e) {
+                // nextLong не поглощает значение при ошибке
+                reader.skipValue();
+                return fallback;
+            }
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+    private static double nextDouble(JsonReader reader, double fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            try {
+                return reader.nextDouble();
+            } catch (NumberFormatException e) {
+                reader.skipValue();
+                return fallback;
+            }
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+    private static boolean nextBoolean(JsonReader reader, boolean fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        if (token == JsonToken.NUMBER) {
+            return reader.nextInt() != 0;
+        }
+        if (token == JsonToken.STRING) {
+            return Boolean.parseBoolean(reader.nextString());
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+    private static PurchaseItem skip(JsonReader reader) throws IOException {
+        reader.skipValue();
+        return null;
+    }
+
+    private static final class PollEntry {
+        long id = Purchase.NO_ID;
+        long time;
+        Purchase purchase;
+    }
+}
@@ -0,0 +1,21 @@
+package com.bedepay.trademc.purchase;
+
+import java.util.List;
+
+/**
+ * Купленный предмет и rcon команды для его выдачи
+ * cost - стоимость предмета, result - флаг успешной оплаты предмета на стороне TradeMC
+ */
+public record PurchaseItem(String id, String name, double cost, boolean result, List<String> commands) {
+
+    public PurchaseItem {
+        commands = List.copyOf(commands);
+    }
+
+    /**
+     * Название для логов и оповещений, id если название не передано
+     */
+    public String displayName() {
+        return name != null ? name : id;
+    }
+}
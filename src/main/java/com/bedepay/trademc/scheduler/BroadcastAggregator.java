@@ -0,0 +1,203 @@
+package com.bedepay.trademc.scheduler;
+
+import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.manager.Settings;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Объединение оповещений о покупках
+ * Покупки одного игрока за broadcast.window-ms сводятся в одно сообщение со списком предметов
+ * (несколько rcon команд одного предмета покупки дают одну строку, повторная покупка - ещё одну).
+ * Общее число оповещений ограничено broadcast.max-per-minute, пропущенные покупки выводятся
+ * одной итоговой строкой "+N покупок"
+ * Все методы вызываются только из основного потока сервера
+ */
+public class BroadcastAggregator {
+    private static final long MILLIS_PER_MINUTE = 60_000L;
+
+    /**
+     * Покупки одного игрока, накопленные за окно
+     */
+    private static final class Group {
+        final String buyer;
+        final long createdAt;
+        final Set<Long> purchases = new HashSet<>();
+        final Map<String, String> items = new LinkedHashMap<>(); // "покупка:предмет" -> название
+
+        Group(String buyer, long createdAt) {
+            this.buyer = buyer;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final TradeMc plugin;
+    private boolean enabled;
+    private long windowMillis;
+    private int maxItems;
+    private double maxTokens;
+    private double tokensPerMilli;
+    private final Map<String, Group> groups = new LinkedHashMap<>(); // В порядке появления
+
+    private BukkitTask task;
+    private double tokens;
+    private long lastRefill;
+    private int suppressed;
+
+    public BroadcastAggregator(TradeMc plugin, Settings.Broadcast settings) {
+        this.plugin = plugin;
+        apply(settings);
+        this.tokens = maxTokens;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Применяет новые настройки при перезагрузке конфигурации
+     * При выключении объединения накопленное отправляется сразу, при включении запускается таймер
+     */
+    public void update(Settings.Broadcast settings) {
+        boolean wasEnabled = enabled;
+        apply(settings);
+        tokens = Math.min(tokens, maxTokens);
+        if (wasEnabled && !enabled) {
+            stop();
+        } else if (!wasEnabled && enabled) {
+            start();
+        }
+    }
+
+    private void apply(Settings.Broadcast settings) {
+        this.enabled = settings.enabled();
+        this.windowMillis = settings.windowMillis();
+        this.maxItems = settings.maxItems();
+        this.maxTokens = settings.maxPerMinute();
+        this.tokensPerMilli = settings.maxPerMinute() / (double) MILLIS_PER_MINUTE;
+    }
+
+    /**
+     * Запускает проверку накопленных оповещений каждый тик
+     */
+    public void start() {
+        if (task != null || !enabled) return;
+        task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+    }
+
+    /**
+     * Останавливает таймер и отправляет всё накопленное
+     */
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        flush(Long.MAX_VALUE);
+    }
+
+    /**
+     * Добавляет выданный предмет в оповещение о покупке игрока
+     * Повторные вызовы для того же предмета той же покупки (по одному на rcon команду) не дублируют строку
+     */
+    public void submit(String buyer, long purchaseId, String itemId, String itemName) {
+        if (!enabled) {
+            broadcast(buyer, itemName);
+            return;
+        }
+        Group group = groups.computeIfAbsent(buyer.toLowerCase(), k -> new Group(buyer, System.currentTimeMillis()));
+        group.purchases.add(purchaseId);
+        group.items.putIfAbsent(purchaseId + ":" + itemId, itemName);
+    }
+
+    private void tick() {
+        if (groups.isEmpty() && suppressed == 0) return;
+        flush(System.currentTimeMillis());
+    }
+
+    private void flush(long now) {
+        refill(System.currentTimeMillis());
+
+        // Итоговая строка выводится, как только лимит позволяет
+        if (suppressed > 0 && tokens >= 1) {
+            tokens--;
+            plugin.getServer().broadcastMessage(plugin.getConfigManager().getMessage("messages.purchase-broadcast-more")
+                .render("%count%", String.valueOf(suppressed)));
+            suppressed = 0;
+        }
+
+        Iterator<Group> it = groups.values().iterator();
+        while (it.hasNext()) {
+            Group group = it.next();
+            // Группы упорядочены по времени создания, дальше только более новые
+            if (now != Long.MAX_VALUE && now - group.createdAt < windowMillis) break;
+            it.remove();
+            if (tokens >= 1) {
+                tokens--;
+                broadcast(group.buyer, formatItems(group.items.values()));
+            } else {
+                suppressed += group.purchases.size();
+            }
+        }
+
+        // При выключении пропущенные покупки выводятся сразу, без ожидания лимита
+        if (now == Long.MAX_VALUE && suppressed > 0) {
+            tokens = 1;
+            flush(now);
+        }
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0) return;
+        tokens = Math.min(maxTokens, tokens + elapsed * tokensPerMilli);
+        lastRefill = now;
+    }
+
+    /**
+     * Список предметов: одинаковые названия из разных покупок выводятся как "VIP x2"
+     */
+    private String formatItems(Collection<String> items) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (String item : items) {
+            counts.merge(item, 1, Integer::sum);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        int shown = 0;
+        int hidden = 0;
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (shown == maxItems) {
+                hidden += entry.getValue();
+                continue;
+            }
+            if (shown > 0) sb.append(", ");
+            sb.append(entry.getKey());
+            if (entry.getValue() > 1) sb.append(" x").append(entry.getValue());
+            shown++;
+        }
+        if (hidden > 0) {
+            sb.append(" +").append(hidden);
+        }
+        return sb.toString();
+    }
+
+    private void broadcast(String buyer, String items) {
+        plugin.getServer().broadcastMessage(plugin.getConfigManager().getMessage("messages.purchase-broadcast")
+            .render("%buyer%", buyer, "%item%", items));
+    }
+
+    /**
+     * Покупок, ожидающих оповещения
+     */
+    public int getPendingCount() {
+        int count = 0;
+        for (Group group : groups.values()) {
+            count += group.purchases.size();
+        }
+        return count;
+    }
+}
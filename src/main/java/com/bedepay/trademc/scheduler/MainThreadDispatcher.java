@@ -0,0 +1,124 @@
+package com.bedepay.trademc.scheduler;
+
+import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.manager.Settings;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Очередь задач для основного потока сервера с ограничением времени на тик
+ * Асинхронные потоки добавляют задачи (выполнение rcon команд), раз в тик очередь
+ * разбирается, пока не исчерпан бюджет времени. Остаток переносится на следующий тик
+ */
+public class MainThreadDispatcher {
+    private final TradeMc plugin;
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final LongAdder dispatched = new LongAdder();
+    private volatile long budgetNanos;
+
+    private BukkitTask task;
+    private volatile long lastDrainNanos;
+    private volatile long maxDrainNanos;
+
+    public MainThreadDispatcher(TradeMc plugin, Settings.Dispatch settings) {
+        this.plugin = plugin;
+        update(settings);
+    }
+
+    /**
+     * Применяет бюджет времени из новых настроек (при перезагрузке конфигурации)
+     */
+    public void update(Settings.Dispatch settings) {
+        this.budgetNanos = (long) (settings.tickBudgetMillis() * 1_000_000L);
+    }
+
+    /**
+     * Запускает разбор очереди каждый тик
+     */
+    public void start() {
+        if (task != null) return;
+        task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::drain, 1L, 1L);
+    }
+
+    /**
+     * Останавливает разбор и выполняет всё, что осталось в очереди (вызывать из основного потока)
+     */
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        int remaining = depth.get();
+        if (remaining > 0) {
+            plugin.getLogger().info("Выполнение оставшихся команд перед выключением: " + remaining);
+            drain(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Ставит задачу в очередь основного потока (можно вызывать из любого потока)
+     */
+    public void submit(Runnable action) {
+        queue.add(action);
+        depth.incrementAndGet();
+    }
+
+    private void drain() {
+        if (depth.get() == 0) return;
+        drain(budgetNanos);
+    }
+
+    private void drain(long budget) {
+        long start = System.nanoTime();
+        Runnable action;
+        // Хотя бы одна задача за тик выполняется всегда, даже если она дольше бюджета
+        do {
+            action = queue.poll();
+            if (action == null) break;
+            depth.decrementAndGet();
+            try {
+                action.run();
+            } catch (Exception e) {
+                plugin.getLogger().severe("Ошибка выполнения задачи в основном потоке: " + e.getMessage());
+                e.printStackTrace();
+            }
+            dispatched.increment();
+        } while (System.nanoTime() - start < budget);
+
+        long elapsed = System.nanoTime() - start;
+        lastDrainNanos = elapsed;
+        if (elapsed > maxDrainNanos) {
+            maxDrainNanos = elapsed;
+        }
+    }
+
+    /**
+     * Количество задач, ожидающих выполнения
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Время последнего разбора очереди за тик, мс
+     */
+    public double getLastDrainMillis() {
+        return lastDrainNanos / 1_000_000.0;
+    }
+
+    /**
+     * Максимальное время разбора очереди за тик, мс
+     */
+    public double getMaxDrainMillis() {
+        return maxDrainNanos / 1_000_000.0;
+    }
+
+    public long getDispatchedCount() {
+        return dispatched.sum();
+    }
+}
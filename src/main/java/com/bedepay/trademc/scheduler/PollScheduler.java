@@ -0,0 +1,161 @@
+package com.bedepay.trademc.scheduler;
+
+import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.manager.PurchaseManager.PollResult;
+import com.bedepay.trademc.manager.Settings;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Адаптивный планировщик опроса TradeMC API
+ * Следующий опрос планируется только после завершения предыдущего:
+ * после покупки интервал сокращается, при простое растёт,
+ * при ошибках API - экспоненциальная пауза со случайным разбросом
+ */
+public class PollScheduler {
+    private static final long MILLIS_PER_TICK = 50L;
+    private static final double IDLE_GROWTH = 1.5;
+    private static final int MAX_BACKOFF_EXPONENT = 16;
+
+    private final TradeMc plugin;
+
+    // Параметры из снимка настроек, перечитываются при каждом start()
+    private long baseIntervalMillis;
+    private long minIntervalMillis;
+    private long maxIntervalMillis;
+    private long retryDelayMillis;
+    private long maxBackoffMillis;
+    private int retryAttempts;
+
+    private BukkitTask task;
+    private int generation;               // Отсекает результаты опросов, запущенных до перезапуска
+    private int consecutiveFailures;
+    private volatile boolean running;
+    private volatile long currentIntervalMillis;
+    private volatile long nextRunAt;
+
+    public PollScheduler(TradeMc plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Запускает (или перезапускает) цикл опроса, предыдущий цикл отменяется
+     */
+    public synchronized void start(long initialDelaySeconds) {
+        stop();
+        loadSettings();
+        running = true;
+        consecutiveFailures = 0;
+        currentIntervalMillis = baseIntervalMillis;
+        schedule(initialDelaySeconds * 1000L);
+    }
+
+    /**
+     * Останавливает цикл опроса
+     */
+    public synchronized void stop() {
+        running = false;
+        generation++;
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        nextRunAt = 0L;
+    }
+
+    private void loadSettings() {
+        Settings.Polling polling = plugin.getConfigManager().getSettings().polling();
+        baseIntervalMillis = Math.max(1, polling.intervalSeconds()) * 1000L;
+        minIntervalMillis = Math.min(baseIntervalMillis,
+            Math.max(1, polling.minIntervalSeconds()) * 1000L);
+        maxIntervalMillis = Math.max(baseIntervalMillis,
+            polling.maxIntervalSeconds() * 1000L);
+        retryDelayMillis = Math.max(1, polling.retryDelaySeconds()) * 1000L;
+        maxBackoffMillis = Math.max(retryDelayMillis, polling.maxBackoffSeconds() * 1000L);
+        retryAttempts = polling.retryAttempts();
+    }
+
+    private void schedule(long delayMillis) {
+        if (!running) return;
+        final int scheduledGeneration = generation;
+        nextRunAt = System.currentTimeMillis() + delayMillis;
+        task = plugin.getServer().getScheduler().runTaskLaterAsynchronously(plugin,
+            () -> runPoll(scheduledGeneration),
+            Math.max(1L, delayMillis / MILLIS_PER_TICK));
+    }
+
+    private void runPoll(int scheduledGeneration) {
+        if (!plugin.isConfigValid() || plugin.getPurchaseManager() == null) {
+            onPollComplete(scheduledGeneration, PollResult.IDLE);
+            return;
+        }
+
+        plugin.getPurchaseManager().checkNewPurchases().whenComplete((result, error) ->
+            onPollComplete(scheduledGeneration, error != null || result == null ? PollResult.ERROR : result));
+    }
+
+    private synchronized void onPollComplete(int scheduledGeneration, PollResult result) {
+        if (scheduledGeneration != generation) return;
+        task = null;
+
+        long delay;
+        switch (result) {
+            case NEW_PURCHASES:
+                consecutiveFailures = 0;
+                currentIntervalMillis = minIntervalMillis;
+                delay = currentIntervalMillis;
+                break;
+            case ERROR:
+                consecutiveFailures++;
+                if (consecutiveFailures == retryAttempts + 1) {
+                    plugin.getLogger().warning("[Poll] TradeMC API недоступен после " + retryAttempts
+                        + " повторов, продолжаем с увеличенной паузой");
+                }
+                delay = backoffDelay(consecutiveFailures);
+                break;
+            default:
+                if (consecutiveFailures > 0) {
+                    consecutiveFailures = 0;
+                    currentIntervalMillis = baseIntervalMillis;
+                } else {
+                    currentIntervalMillis = Math.min(maxIntervalMillis, (long) (currentIntervalMillis * IDLE_GROWTH));
+                }
+                delay = currentIntervalMillis;
+                break;
+        }
+        schedule(delay);
+    }
+
+    /**
+     * Экспоненциальная пауза с разбросом: половина фиксирована, половина случайна
+     */
+    private long backoffDelay(int failures) {
+        int exponent = Math.min(failures - 1, MAX_BACKOFF_EXPONENT);
+        long delay = Math.min(maxBackoffMillis, retryDelayMillis << exponent);
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Текущий интервал между опросами в секундах (без учёта пауз при ошибках)
+     */
+    public long getCurrentIntervalSeconds() {
+        return currentIntervalMillis / 1000L;
+    }
+
+    /**
+     * Время следующего опроса (epoch millis), 0 если опрос не запланирован
+     */
+    public long getNextRunAt() {
+        return nextRunAt;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+}
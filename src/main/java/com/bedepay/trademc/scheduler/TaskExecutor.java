@@ -0,0 +1,202 @@
+package com.bedepay.trademc.scheduler;
+
+import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.manager.Settings;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ограниченный исполнитель асинхронных задач плагина
+ * Режим pool - фиксированный пул с ограниченной очередью,
+ * режим virtual - виртуальный поток на задачу (Java 21+) с ограничением числа задач в работе
+ * Ведёт счётчики активных, ожидающих, выполненных и отклонённых задач
+ */
+public class TaskExecutor extends AbstractExecutorService {
+    private static final long REJECT_LOG_INTERVAL_MILLIS = 10_000L;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5L;
+
+    private final TradeMc plugin;
+    private final String name;
+    private final ExecutorService delegate;
+    private final ThreadPoolExecutor pool;   // null в режиме virtual
+    private final Semaphore permits;         // null в режиме pool
+    private final boolean callerRuns;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicLong lastRejectLog = new AtomicLong();
+
+    private TaskExecutor(TradeMc plugin, String name, int threads, int queueSize, boolean virtual, boolean callerRuns) {
+        this.plugin = plugin;
+        this.name = name;
+        this.callerRuns = callerRuns;
+
+        ExecutorService virtualExecutor = virtual ? createVirtualExecutor(name) : null;
+        if (virtualExecutor != null) {
+            this.delegate = virtualExecutor;
+            this.pool = null;
+            this.permits = new Semaphore(threads + queueSize);
+        } else {
+            if (virtual) {
+                plugin.getLogger().warning("Виртуальные потоки недоступны (нужна Java 21+), используется пул потоков");
+            }
+            this.pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), namedThreadFactory(name), (task, executor) -> reject(task));
+            this.pool.allowCoreThreadTimeOut(true);
+            this.delegate = pool;
+            this.permits = null;
+        }
+    }
+
+    /**
+     * Создаёт исполнитель по настройкам из снимка конфигурации (секция executor или callback.executor)
+     */
+    public static TaskExecutor create(TradeMc plugin, Settings.Executor settings, String name) {
+        TaskExecutor executor = new TaskExecutor(plugin, name, settings.threads(), settings.queueSize(),
+            settings.virtual(), settings.callerRuns());
+        plugin.getLogger().info("Исполнитель " + name + ": " + (executor.isVirtual() ? "виртуальные потоки" : "пул")
+            + ", потоков " + settings.threads() + ", очередь " + settings.queueSize());
+        return executor;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (permits != null && !permits.tryAcquire()) {
+            reject(command);
+            return;
+        }
+
+        try {
+            delegate.execute(() -> {
+                active.incrementAndGet();
+                try {
+                    command.run();
+                } finally {
+                    active.decrementAndGet();
+                    completed.increment();
+                    if (permits != null) permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Задача отклонена (переполнение или shutdown) - возвращаем разрешение
+            if (permits != null) permits.release();
+            throw e;
+        }
+    }
+
+    private void reject(Runnable task) {
+        rejected.increment();
+
+        long now = System.currentTimeMillis();
+        long last = lastRejectLog.get();
+        if (now - last >= REJECT_LOG_INTERVAL_MILLIS && lastRejectLog.compareAndSet(last, now)) {
+            plugin.getLogger().warning("Исполнитель " + name + " перегружен, задачи отклоняются (всего: " + rejected.sum() + ")");
+        }
+
+        if (callerRuns && !isShutdown()) {
+            task.run();
+            return;
+        }
+        throw new RejectedExecutionException("Исполнитель " + name + " перегружен");
+    }
+
+    /**
+     * Останавливает исполнитель, ожидая завершения текущих задач
+     */
+    public void close() {
+        delegate.shutdown();
+        try {
+            if (!delegate.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                List<Runnable> dropped = delegate.shutdownNow();
+                plugin.getLogger().warning("Исполнитель " + name + " не завершился за " + SHUTDOWN_TIMEOUT_SECONDS
+                    + " сек, отменено задач: " + dropped.size());
+            }
+        } catch (InterruptedException e) {
+            delegate.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isVirtual() {
+        return pool == null;
+    }
+
+    /**
+     * Количество задач, выполняющихся в данный момент
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Количество задач, ожидающих свободного потока
+     */
+    public int getQueueDepth() {
+        return pool != null ? pool.getQueue().size() : 0;
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    private static ThreadFactory namedThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Создаёт executor с виртуальным потоком на задачу через reflection,
+     * чтобы сборка под Java 17 продолжала работать. Возвращает null, если API недоступно
+     */
+    private static ExecutorService createVirtualExecutor(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-vt-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
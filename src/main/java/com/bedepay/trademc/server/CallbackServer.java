@@ -1,6 +1,10 @@
 package com.bedepay.trademc.server;
 
 import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.manager.Settings;
+import com.bedepay.trademc.metrics.Counter;
+import com.bedepay.trademc.scheduler.TaskExecutor;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -8,29 +12,51 @@ import com.sun.net.httpserver.HttpHandler;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Сервер для обработки обратных вызовов (callback) от TradeMC
  */
 public class CallbackServer {
+    private static final int RETRY_AFTER_SECONDS = 5;
+    private static final long ACK_TIMEOUT_MILLIS = 5000L;
+    private static final long DRAIN_POLL_MILLIS = 20L;
+
     private final TradeMc plugin;
     private HttpServer server;
-    private boolean enabled;
+    private HttpContext context;
+    private HttpContext metricsContext;
+    private CallbackHandler handler;
+    private volatile TaskExecutor executor;
+    private volatile Settings.Callback settings;
+    private volatile boolean enabled;
 
     public CallbackServer(TradeMc plugin) {
+        this(plugin, plugin.getConfigManager().getSettings().callback());
+    }
+
+    public CallbackServer(TradeMc plugin, Settings.Callback settings) {
         this.plugin = plugin;
+        this.settings = settings;
         startServer();
     }
 
     private void startServer() {
         try {
-            String host = plugin.getConfig().getString("callback.host", "0.0.0.0");
-            int port = plugin.getConfig().getInt("callback.port", 8080);
-            String path = plugin.getConfig().getString("callback.path", "/tradecallback");
+            String host = settings.host();
+            int port = settings.port();
+            String path = settings.path();
 
-            server = HttpServer.create(new InetSocketAddress(host, port), 0);
-            server.createContext(path, new CallbackHandler(plugin));
-            server.setExecutor(null); // Использовать дефолтный исполнитель
+            executor = TaskExecutor.create(plugin, settings.executor(), "TradeMc-callback");
+            server = HttpServer.create(new InetSocketAddress(host, port), settings.backlog());
+            handler = new CallbackHandler(plugin, executor, settings);
+            context = server.createContext(path, handler);
+            // Поток диспетчера HttpServer только принимает запрос и передаёт его в executor,
+            // чтение тела и обработка выполняются в отдельном пуле
             server.start();
             enabled = true;
             plugin.getLogger().info("Callback server started on " + host + ":" + port + path);
@@ -38,6 +64,9 @@ public class CallbackServer {
             plugin.getLogger().severe("Не удалось запустить Callback сервер: " + e.getMessage());
             e.printStackTrace();
             enabled = false;
+            if (executor != null) {
+                executor.close();
+            }
         }
     }
 
@@ -45,12 +74,94 @@ public class CallbackServer {
         return enabled && server != null;
     }
 
-    public void stop() {
+    /**
+     * Исполнитель обработчиков callback (для мониторинга очереди)
+     */
+    public TaskExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Настройки, с которыми работает сервер
+     */
+    public Settings.Callback getSettings() {
+        return settings;
+    }
+
+    /**
+     * Применяет настройки, не требующие нового сокета: путь, лимит тела, debug, пул обработчиков
+     * Новый путь регистрируется до удаления старого, принятые запросы дорабатываются
+     */
+    public synchronized void reconfigure(Settings.Callback next) {
+        if (server == null) return;
+        handler.update(next);
+        if (!next.executor().equals(settings.executor())) {
+            // Новые запросы идут в новый пул, старый дорабатывает принятые и закрывается
+            TaskExecutor previous = executor;
+            executor = TaskExecutor.create(plugin, next.executor(), "TradeMc-callback");
+            handler.executor = executor;
+            previous.close();
+        }
+        if (!next.path().equals(context.getPath())) {
+            HttpContext previous = context;
+            context = server.createContext(next.path(), handler);
+            server.removeContext(previous);
+            plugin.getLogger().info("Callback path changed to " + next.path());
+        }
+        settings = next;
+    }
+
+    /**
+     * Регистрирует или убирает путь /metrics в соответствии с настройками
+     */
+    public synchronized void updateMetrics(Settings.Metrics metrics) {
+        if (server == null) return;
+        String desired = metrics.prometheus() ? metrics.path() : null;
+        String current = metricsContext != null ? metricsContext.getPath() : null;
+        if (desired == null ? current == null : desired.equals(current)) return;
+
+        if (metricsContext != null) {
+            server.removeContext(metricsContext);
+            metricsContext = null;
+        }
+        if (desired != null) {
+            try {
+                metricsContext = server.createContext(desired, new MetricsHandler(plugin.getMetrics()));
+                plugin.getLogger().info("Metrics available on callback server at " + desired);
+            } catch (IllegalArgumentException e) {
+                plugin.getLogger().warning("Не удалось зарегистрировать путь метрик " + desired + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Останавливает сервер: на новые запросы отвечает 503 Retry-After,
+     * уже принятые дорабатываются не дольше callback.drain-seconds, затем сокет закрывается
+     * (HttpServer.stop(delay) в Java 17 всегда ждёт весь delay, поэтому ожидание своё)
+     */
+    public synchronized void stop() {
+        enabled = false;
         if (server != null) {
+            handler.draining = true;
+            long deadline = System.currentTimeMillis() + settings.drainSeconds() * 1000L;
+            while (handler.inFlight.get() > 0 && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(DRAIN_POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (handler.inFlight.get() > 0) {
+                plugin.getLogger().warning("Callback server stopped with " + handler.inFlight.get() + " unfinished requests");
+            }
             server.stop(0);
+            server = null;
             plugin.getLogger().info("Callback server stopped.");
         }
-        enabled = false;
+        if (executor != null) {
+            executor.close();
+        }
     }
 
     /**
@@ -58,33 +169,146 @@ public class CallbackServer {
      */
     static class CallbackHandler implements HttpHandler {
         private final TradeMc plugin;
+        private volatile TaskExecutor executor;
+        private final AtomicInteger inFlight = new AtomicInteger(); // Принятые, но ещё не отвеченные запросы
+        private volatile int maxBodyBytes;
+        private volatile boolean debug;
+        private volatile boolean draining;
+        private final Counter received;
+        private final Counter rejected;
+        private final Counter signatureFailures;
+        private final Counter acknowledged;
 
-        public CallbackHandler(TradeMc plugin) {
+        public CallbackHandler(TradeMc plugin, TaskExecutor executor, Settings.Callback settings) {
             this.plugin = plugin;
+            this.executor = executor;
+            this.received = plugin.getMetrics().counter("trademc_callbacks_received_total", "Принятые HTTP запросы callback");
+            this.rejected = plugin.getMetrics().counter("trademc_callbacks_rejected_total", "Ответы 503 при перегрузке или остановке сервера");
+            this.signatureFailures = plugin.getMetrics().counter("trademc_callback_signature_failures_total", "Callback с неверной подписью");
+            this.acknowledged = plugin.getMetrics().counter("trademc_callbacks_acknowledged_total", "Callback, сохранённые в журнал и подтверждённые");
+            update(settings);
+        }
+
+        void update(Settings.Callback settings) {
+            this.maxBodyBytes = settings.maxBodyBytes();
+            this.debug = settings.debug();
         }
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
-                exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+            received.increment();
+            if (draining) {
+                rejected.increment();
+                // Сервер останавливается - TradeMC повторит запрос позже
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
                 return;
             }
+            inFlight.incrementAndGet();
+            try {
+                executor.execute(() -> process(exchange));
+            } catch (RejectedExecutionException e) {
+                inFlight.decrementAndGet();
+                rejected.increment();
+                // Пул перегружен - сразу отвечаем 503, TradeMC повторит запрос позже
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            }
+        }
 
-            InputStream is = exchange.getRequestBody();
-            String body = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))
-                    .lines()
-                    .reduce("", (accumulator, actual) -> accumulator + actual);
+        private void process(HttpExchange exchange) {
+            try {
+                if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                    exchange.sendResponseHeaders(405, -1); // Method Not Allowed
+                    return;
+                }
+
+                byte[] body = readBody(exchange, maxBodyBytes);
+                if (body == null) {
+                    plugin.getLogger().warning("[Callback] Тело запроса больше " + maxBodyBytes + " байт, запрос отклонён");
+                    exchange.sendResponseHeaders(413, -1); // Payload Too Large
+                    return;
+                }
+
+                if (debug) {
+                    plugin.getLogger().info("[Callback] Получены данные: " + new String(body, StandardCharsets.UTF_8));
+                }
+
+                // Поддельные запросы отклоняются до разбора JSON и записи на диск
+                if (!plugin.getPurchaseManager().validateHash(body)) {
+                    signatureFailures.increment();
+                    plugin.getLogger().warning("[Callback] Неверная подпись callback от " + exchange.getRemoteAddress());
+                    exchange.sendResponseHeaders(403, -1); // Forbidden
+                    return;
+                }
 
-            plugin.getLogger().info("[Callback] Получены данные: " + body);
+                // Отвечаем 200 только после того, как callback сохранён в журнал на диске,
+                // обработку выполнит PurchaseManager асинхронно
+                try {
+                    plugin.getCallbackJournal().append(body).get(ACK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    plugin.getLogger().severe("[Callback] Не удалось сохранить callback в журнал: " + e.getMessage());
+                    exchange.getResponseHeaders().set("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
 
-            // Передаем данные PurchaseManager для обработки
-            plugin.getPurchaseManager().handlePurchaseCallback(body);
+                acknowledged.increment();
+                String response = "OK";
+                exchange.sendResponseHeaders(200, response.length());
+                OutputStream os = exchange.getResponseBody();
+                os.write(response.getBytes());
+                os.close();
+            } catch (IOException e) {
+                plugin.getLogger().warning("[Callback] Ошибка обработки запроса: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // Без ответа TradeMC ждал бы до таймаута, а ошибка потерялась бы в пуле
+                plugin.getLogger().severe("[Callback] Внутренняя ошибка обработки запроса: " + e.getMessage());
+                e.printStackTrace();
+                try {
+                    exchange.sendResponseHeaders(500, -1); // Internal Server Error
+                } catch (IOException | RuntimeException ignored) {
+                    // Заголовки уже отправлены или соединение закрыто
+                }
+            } finally {
+                exchange.close();
+                inFlight.decrementAndGet();
+            }
+        }
+
+        /**
+         * Читает тело запроса не более maxBytes байт
+         * Возвращает null, если тело больше лимита
+         */
+        private static byte[] readBody(HttpExchange exchange, int maxBytes) throws IOException {
+            InputStream is = exchange.getRequestBody();
+            String lengthHeader = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (lengthHeader != null) {
+                long length;
+                try {
+                    length = Long.parseLong(lengthHeader.trim());
+                } catch (NumberFormatException e) {
+                    length = -1;
+                }
+                if (length > maxBytes) return null;
+                if (length >= 0) {
+                    byte[] body = is.readNBytes((int) length);
+                    if (body.length != length) {
+                        throw new EOFException("Тело запроса короче Content-Length");
+                    }
+                    return body;
+                }
+            }
 
-            String response = "OK";
-            exchange.sendResponseHeaders(200, response.length());
-            OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            // Chunked или без длины - читаем до лимита плюс один байт для проверки переполнения
+            byte[] body = is.readNBytes(maxBytes + 1);
+            return body.length > maxBytes ? null : body;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,51 @@
+package com.bedepay.trademc.server;
+
+import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.manager.Settings;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Отдельный HTTP сервер для /metrics, когда callback сервер выключен
+ */
+public class MetricsServer {
+    private final TradeMc plugin;
+    private final Settings.Metrics settings;
+    private HttpServer server;
+
+    public MetricsServer(TradeMc plugin, Settings.Metrics settings) {
+        this.plugin = plugin;
+        this.settings = settings;
+        startServer();
+    }
+
+    private void startServer() {
+        try {
+            server = HttpServer.create(new InetSocketAddress(settings.host(), settings.port()), 0);
+            server.createContext(settings.path(), new MetricsHandler(plugin.getMetrics()));
+            server.start();
+            plugin.getLogger().info("Metrics server started on " + settings.host() + ":" + settings.port() + settings.path());
+        } catch (IOException | IllegalArgumentException e) {
+            plugin.getLogger().severe("Не удалось запустить сервер метрик: " + e.getMessage());
+            server = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return server != null;
+    }
+
+    public Settings.Metrics getSettings() {
+        return settings;
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+            plugin.getLogger().info("Metrics server stopped.");
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.bedepay.trademc.storage;
+
+import com.bedepay.trademc.TradeMc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал предзаписи (write-ahead) входящих callback
+ * Тело callback записывается на диск до ответа 200 OK, после обработки в журнал
+ * добавляется отметка о завершении. Незавершённые записи повторяются при запуске
+ * Запись ведёт один поток: накопившиеся записи пишутся одним вызовом и одним fsync (group commit)
+ *
+ * Формат записи: [int длина данных][long seq][byte тип][данные][int crc32]
+ */
+public class CallbackJournal {
+    private static final byte TYPE_ENTRY = 1;
+    private static final byte TYPE_DONE = 2;
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + 1;
+    private static final int RECORD_OVERHEAD = HEADER_SIZE + Integer.BYTES;
+    private static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+    private static final int MAX_BATCH = 256;
+    private static final long COMPACT_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Запись журнала: порядковый номер и исходное тело callback
+     */
+    public record Entry(long seq, byte[] payload) {}
+
+    private final TradeMc plugin;
+    private final File file;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Map<Long, Entry> pending = new LinkedHashMap<>(); // Доступ только из потока записи и open()
+    private FileChannel channel;
+    private Thread writer;
+    private Consumer<Entry> consumer;
+    private long nextSeq = 1;
+    private volatile boolean running;
+
+    public CallbackJournal(TradeMc plugin, File file) {
+        this.plugin = plugin;
+        this.file = file;
+    }
+
+    /**
+     * Открывает журнал и запускает поток записи
+     * consumer получает каждую запись после того, как она надёжно сохранена на диск
+     * Возвращает незавершённые записи предыдущего запуска
+     */
+    public synchronized List<Entry> open(Consumer<Entry> consumer) throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("Журнал callback уже открыт");
+        }
+        this.consumer = consumer;
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validSize = recover();
+        if (validSize != channel.size()) {
+            plugin.getLogger().warning("Журнал callback повреждён, обрезаем " + (channel.size() - validSize) + " байт");
+            channel.truncate(validSize);
+        }
+        if (pending.isEmpty() && validSize > 0) {
+            channel.truncate(0);
+            validSize = 0;
+        }
+        channel.position(validSize);
+
+        running = true;
+        writer = new Thread(this::writeLoop, "TradeMc-journal");
+        writer.setDaemon(true);
+        writer.start();
+
+        if (!pending.isEmpty()) {
+            plugin.getLogger().info("В журнале callback незавершённых записей: " + pending.size());
+        }
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Добавляет тело callback в журнал
+     * Future завершается, когда запись сохранена на диск (после fsync)
+     */
+    public CompletableFuture<Entry> append(byte[] payload) {
+        if (payload.length > MAX_PAYLOAD) {
+            return CompletableFuture.failedFuture(new IOException("Слишком большая запись журнала"));
+        }
+        PendingWrite write = new PendingWrite(TYPE_ENTRY, payload);
+        if (!running) {
+            return CompletableFuture.failedFuture(new IOException("Журнал callback закрыт"));
+        }
+        queue.add(write);
+        return write.future;
+    }
+
+    /**
+     * Отмечает запись обработанной, при следующем запуске она не будет повторена
+     */
+    public void markDone(long seq) {
+        if (!running) return;
+        PendingWrite write = new PendingWrite(TYPE_DONE, new byte[0]);
+        write.seq = seq;
+        queue.add(write);
+    }
+
+    /**
+     * Останавливает поток записи, дописывая всё, что уже в очереди
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (channel == null) return;
+            running = false;
+            thread = writer;
+        }
+
+        queue.add(PendingWrite.SHUTDOWN);
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            try {
+                channel.force(true);
+                channel.close();
+            } catch (IOException e) {
+                plugin.getLogger().severe("Ошибка закрытия журнала callback: " + e.getMessage());
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Читает журнал с начала, заполняет pending и возвращает размер корректной части файла
+     */
+    private long recover() throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer crcBuffer = ByteBuffer.allocate(Integer.BYTES);
+
+        while (position + RECORD_OVERHEAD <= size) {
+            header.clear();
+            if (!readFully(header, position)) break;
+            header.flip();
+            int length = header.getInt();
+            long seq = header.getLong();
+            byte type = header.get();
+            if (length < 0 || length > MAX_PAYLOAD || position + RECORD_OVERHEAD + length > size) break;
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            crcBuffer.clear();
+            if (!readFully(payload, position + HEADER_SIZE) || !readFully(crcBuffer, position + HEADER_SIZE + length)) break;
+            crcBuffer.flip();
+            if (crc(seq, type, payload.array()) != crcBuffer.getInt()) break;
+
+            if (type == TYPE_ENTRY) {
+                pending.put(seq, new Entry(seq, payload.array()));
+            } else if (type == TYPE_DONE) {
+                pending.remove(seq);
+            }
+            nextSeq = Math.max(nextSeq, seq + 1);
+            position += RECORD_OVERHEAD + length;
+        }
+        return position;
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) return false;
+            position += read;
+        }
+        return true;
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>(MAX_BATCH);
+        boolean shutdown = false;
+
+        while (!shutdown) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            shutdown = batch.remove(PendingWrite.SHUTDOWN);
+
+            writeBatch(batch);
+            batch.clear();
+        }
+
+        // Дописываем отметки, поступившие после сигнала остановки
+        queue.drainTo(batch);
+        batch.remove(PendingWrite.SHUTDOWN);
+        writeBatch(batch);
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        if (batch.isEmpty()) return;
+
+        int total = 0;
+        for (PendingWrite write : batch) {
+            if (write.type == TYPE_ENTRY) {
+                write.seq = nextSeq++;
+            }
+            total += RECORD_OVERHEAD + write.payload.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        for (PendingWrite write : batch) {
+            buffer.putInt(write.payload.length)
+                .putLong(write.seq)
+                .put(write.type)
+                .put(write.payload)
+                .putInt(crc(write.seq, write.type, write.payload));
+        }
+        buffer.flip();
+
+        long start = -1;
+        try {
+            start = channel.position();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Ошибка записи журнала callback: " + e.getMessage());
+            e.printStackTrace();
+            rollback(start);
+            for (PendingWrite write : batch) {
+                write.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        for (PendingWrite write : batch) {
+            if (write.type == TYPE_ENTRY) {
+                Entry entry = new Entry(write.seq, write.payload);
+                pending.put(entry.seq(), entry);
+                write.future.complete(entry);
+                dispatch(entry);
+            } else {
+                pending.remove(write.seq);
+            }
+        }
+
+        compactIfIdle();
+    }
+
+    /**
+     * Отрезает частично записанную пачку, чтобы следующие записи не оказались за повреждённым участком
+     */
+    private void rollback(long position) {
+        if (position < 0) return;
+        try {
+            channel.truncate(position);
+            channel.position(position);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Не удалось откатить журнал callback: " + e.getMessage());
+        }
+    }
+
+    private void dispatch(Entry entry) {
+        try {
+            consumer.accept(entry);
+        } catch (RuntimeException e) {
+            // Запись останется незавершённой и будет повторена при следующем запуске
+            plugin.getLogger().severe("Ошибка передачи callback #" + entry.seq() + " на обработку: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Когда все записи обработаны, журнал обнуляется, чтобы файл не рос бесконечно
+     */
+    private void compactIfIdle() {
+        if (!pending.isEmpty()) return;
+        try {
+            if (channel.size() >= COMPACT_THRESHOLD) {
+                channel.truncate(0);
+                channel.position(0);
+            }
+        } catch (IOException e) {
+            plugin.getLogger().warning("Не удалось сжать журнал callback: " + e.getMessage());
+        }
+    }
+
+    private static int crc(long seq, byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Long.BYTES + 1).putLong(seq).put(type).flip());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static final class PendingWrite {
+        static final PendingWrite SHUTDOWN = new PendingWrite((byte) 0, new byte[0]);
+
+        final byte type;
+        final byte[] payload;
+        final CompletableFuture<Entry> future = new CompletableFuture<>();
+        long seq;
+
+        PendingWrite(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,599 @@
+package com.bedepay.trademc.storage;
+
+import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.purchase.Purchase;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Отложенная выдача покупок игрокам не в сети
+ * Команды хранятся в ConcurrentHashMap по имени игрока (в нижнем регистре), поиск за O(1)
+ * Изменения применяются в памяти сразу, а на диск их дописывает отдельный поток: накопившиеся
+ * записи пишутся одной серией и одним fsync. ADD - новая команда, DRAIN - выдача первых команд игрока
+ * Команды, забранные на выдачу (take), остаются в файле, пока выдача не подтверждена (markDelivered):
+ * при падении сервера во время выдачи они будут выданы повторно, но не потеряются
+ * Когда мёртвых записей становится больше живых, поток записи переписывает файл только
+ * с актуальными командами (компактизация), не блокируя добавление новых
+ *
+ * Формат записи: [int длина данных][данные][int crc32]
+ * Данные: [byte тип][UTF игрок], для ADD дополнительно [UTF предмет][UTF команда][long id покупки][UTF id предмета],
+ * для DRAIN - [int число команд]. В файлах старых версий последних полей нет: id покупки и предмета
+ * неизвестны, а DRAIN снимает все команды игрока
+ */
+public class PendingDeliveryStore {
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_DRAIN = 2;
+    private static final int MAX_RECORD = 256 * 1024;
+    private static final int MAX_BATCH = 256;
+    private static final int COMPACT_MIN_RECORDS = 1024;
+    private static final long FLUSH_TIMEOUT_MILLIS = 5_000L;
+
+    /**
+     * Отложенная команда: уже подставленная rcon команда, название предмета для лога,
+     * id покупки и предмета TradeMC для объединения оповещений
+     */
+    public record Delivery(String command, String itemName, long purchaseId, String itemId) {}
+
+    private final TradeMc plugin;
+    private final File file;
+    private final Map<String, List<Delivery>> pending = new ConcurrentHashMap<>();
+    private final Map<String, Deque<TakenBatch>> taken = new HashMap<>();  // Выдаются сейчас (под блокировкой this)
+    private final Map<Delivery, CompletableFuture<Void>> unsaved = new IdentityHashMap<>(); // ADD ещё не на диске (под this)
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private FileChannel channel;      // После open() - только поток записи
+    private Thread writer;
+    private volatile boolean running;
+    private int liveEntries;          // Команд в памяти, включая выдаваемые (под блокировкой this)
+    private int fileRecords;          // Записей в файле, включая устаревшие (только поток записи)
+
+    public PendingDeliveryStore(TradeMc plugin, File file) {
+        this.plugin = plugin;
+        this.file = file;
+    }
+
+    /**
+     * Загружает отложенные команды из файла, повреждённый хвост отбрасывается,
+     * и запускает поток записи
+     */
+    public synchronized void open() {
+        if (channel != null) return;
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        try {
+            long validSize = file.exists() ? recover() : 0L;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (validSize != channel.size()) {
+                plugin.getLogger().warning("Файл отложенных выдач повреждён, обрезаем " + (channel.size() - validSize) + " байт");
+                channel.truncate(validSize);
+            }
+            channel.position(validSize);
+            if (!pending.isEmpty()) {
+                plugin.getLogger().info("Отложенных выдач: " + liveEntries + " для " + pending.size() + " игроков");
+            }
+            if (needsCompaction()) {
+                compact();
+            }
+        } catch (IOException e) {
+            plugin.getLogger().severe("Не удалось открыть файл отложенных выдач: " + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
+
+        running = true;
+        writer = new Thread(this::writeLoop, "TradeMc-pending");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Проверяет, есть ли у игрока отложенные команды (без блокировки)
+     * Вызывается прямо в обработчике входа, поэтому должна оставаться O(1)
+     */
+    public boolean hasPending(String player) {
+        return pending.containsKey(player.toLowerCase());
+    }
+
+    /**
+     * Откладывает команду до входа игрока
+     * Вызывается в основном потоке: команда сразу доступна в памяти, а future завершается,
+     * когда запись сохранена на диск (после fsync). Если записать команду не удалось,
+     * она убирается из памяти, чтобы не быть выданной без записи на диске
+     */
+    public CompletableFuture<Void> add(String player, Delivery delivery) {
+        String key = player.toLowerCase();
+        PendingWrite write = new PendingWrite(TYPE_ADD, key, delivery, 0);
+        // До постановки в очередь: иначе поток записи может завершить future раньше подписки
+        write.future.whenComplete((ignored, error) -> onAddWritten(key, delivery, error));
+        synchronized (this) {
+            if (!running) {
+                enqueue(write); // Завершит future ошибкой
+                return write.future;
+            }
+            pending.computeIfAbsent(key, k -> new ArrayList<>(2)).add(delivery);
+            unsaved.put(delivery, write.future);
+            liveEntries++;
+            queue.add(write);
+        }
+        return write.future;
+    }
+
+    /**
+     * Забирает отложенные команды игроков на выдачу
+     * Команды остаются в файле до вызова markDelivered, повторный вызов до него их не вернёт
+     * Ждёт записи на диск недавно добавленных команд, поэтому не вызывается в основном потоке
+     * Если запись не успела за FLUSH_TIMEOUT_MILLIS, такие команды остаются до следующего входа
+     */
+    public Map<String, List<Delivery>> take(Collection<String> players) {
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        synchronized (this) {
+            for (String player : players) {
+                List<Delivery> deliveries = pending.get(player.toLowerCase());
+                if (deliveries == null) continue;
+                for (Delivery delivery : deliveries) {
+                    CompletableFuture<Void> write = unsaved.get(delivery);
+                    if (write != null) writes.add(write);
+                }
+            }
+        }
+        if (!writes.isEmpty()) {
+            try {
+                CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]))
+                    .get(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                plugin.getLogger().warning("Часть отложенных выдач ещё не сохранена на диск: " + e.getMessage());
+            }
+        }
+
+        Map<String, List<Delivery>> result = new HashMap<>();
+        synchronized (this) {
+            for (String player : players) {
+                String key = player.toLowerCase();
+                List<Delivery> deliveries = pending.get(key);
+                if (deliveries == null) continue;
+
+                // DRAIN снимает команды с начала списка, поэтому забирается только сохранённое начало
+                int saved = 0;
+                while (saved < deliveries.size() && !unsaved.containsKey(deliveries.get(saved))) {
+                    saved++;
+                }
+                if (saved == 0) continue;
+                List<Delivery> batch;
+                if (saved == deliveries.size()) {
+                    batch = pending.remove(key);
+                } else {
+                    batch = new ArrayList<>(deliveries.subList(0, saved));
+                    deliveries.subList(0, saved).clear();
+                }
+                taken.computeIfAbsent(key, k -> new ArrayDeque<>()).add(new TakenBatch(batch));
+                result.put(key, batch);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Подтверждает выдачу команд, полученных из take, и записывает отметку DRAIN
+     * Отметки игрока пишутся в порядке take: выданная раньше пачка не снимается с диска,
+     * пока не подтверждены все пачки, забранные до неё
+     */
+    public void markDelivered(String player, List<Delivery> deliveries) {
+        String key = player.toLowerCase();
+        synchronized (this) {
+            Deque<TakenBatch> batches = taken.get(key);
+            if (batches == null) return;
+            for (TakenBatch batch : batches) {
+                if (batch.deliveries == deliveries) {
+                    batch.delivered = true;
+                    break;
+                }
+            }
+            while (!batches.isEmpty() && batches.peekFirst().delivered) {
+                int count = batches.pollFirst().deliveries.size();
+                liveEntries -= count;
+                enqueue(new PendingWrite(TYPE_DRAIN, key, null, count));
+            }
+            if (batches.isEmpty()) {
+                taken.remove(key);
+            }
+        }
+    }
+
+    public synchronized int getDeliveryCount() {
+        return liveEntries;
+    }
+
+    /**
+     * Останавливает поток записи, дописывая всё, что уже в очереди
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (channel == null) return;
+            running = false;
+            thread = writer;
+            writer = null;
+        }
+
+        if (thread != null) {
+            queue.add(PendingWrite.SHUTDOWN);
+            try {
+                thread.join(FLUSH_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            try {
+                channel.force(true);
+                channel.close();
+            } catch (IOException e) {
+                plugin.getLogger().severe("Ошибка закрытия файла отложенных выдач: " + e.getMessage());
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Завершение записи ADD: успешная команда становится доступной для take, неудачная убирается из памяти
+     * Команда с незавершённой записью не забирается take, поэтому при ошибке она ещё в pending
+     */
+    private synchronized void onAddWritten(String key, Delivery delivery, Throwable error) {
+        if (unsaved.remove(delivery) == null || error == null) return;
+        List<Delivery> deliveries = pending.get(key);
+        if (deliveries == null) return;
+        for (Iterator<Delivery> it = deliveries.iterator(); it.hasNext(); ) {
+            if (it.next() == delivery) {
+                it.remove();
+                liveEntries--;
+                break;
+            }
+        }
+        if (deliveries.isEmpty()) {
+            pending.remove(key);
+        }
+    }
+
+    private void enqueue(PendingWrite write) {
+        if (!running) {
+            plugin.getLogger().severe("Файл отложенных выдач не открыт, изменение для " + write.player + " не сохранено");
+            write.future.completeExceptionally(new IOException("Файл отложенных выдач закрыт"));
+            return;
+        }
+        queue.add(write);
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        boolean shutdown = false;
+        while (!shutdown) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            shutdown = batch.remove(PendingWrite.SHUTDOWN);
+
+            writeBatch(batch);
+            batch.clear();
+            if (!shutdown && needsCompaction()) {
+                compact();
+            }
+        }
+
+        // Дописываем изменения, поступившие после сигнала остановки
+        queue.drainTo(batch);
+        batch.remove(PendingWrite.SHUTDOWN);
+        writeBatch(batch);
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        if (batch.isEmpty()) return;
+
+        List<PendingWrite> written = new ArrayList<>(batch.size());
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long start = -1;
+        try {
+            start = channel.position();
+            for (PendingWrite write : batch) {
+                byte[] record;
+                try {
+                    record = encode(write.type, write.player, write.delivery, write.count);
+                } catch (IOException e) {
+                    // Строка длиннее 64 КБ: запись пропускается, остальные пишутся
+                    plugin.getLogger().severe("Отложенная выдача для " + write.player + " не сохранена: " + e.getMessage());
+                    write.future.completeExceptionally(e);
+                    continue;
+                }
+                appendRecord(channel, buffer, record);
+                written.add(write);
+            }
+            writeBuffer(channel, buffer);
+            channel.force(false);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Ошибка записи файла отложенных выдач: " + e.getMessage());
+            e.printStackTrace();
+            rollback(start);
+            for (PendingWrite write : written) {
+                write.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        fileRecords += written.size();
+        for (PendingWrite write : written) {
+            write.future.complete(null);
+        }
+    }
+
+    /**
+     * Отрезает частично записанную пачку, иначе следующие записи окажутся за повреждённым участком
+     */
+    private void rollback(long position) {
+        if (position < 0) return;
+        try {
+            channel.truncate(position);
+            channel.position(position);
+        } catch (IOException e) {
+            plugin.getLogger().severe("Не удалось откатить файл отложенных выдач: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Переписывает файл только с актуальными командами (поток записи или open())
+     * Снимок команд и ещё не записанные изменения забираются под блокировкой, файл пишется без неё:
+     * изменения из очереди уже учтены в снимке, а поступившие позже допишутся в новый файл
+     * Новый файл пишется рядом и атомарно заменяет старый
+     */
+    private void compact() {
+        Map<String, List<Delivery>> snapshot = new HashMap<>();
+        List<PendingWrite> included = new ArrayList<>();
+        synchronized (this) {
+            // Выдаваемые команды ещё не сняты с диска и в файле идут раньше ожидающих
+            for (Map.Entry<String, Deque<TakenBatch>> entry : taken.entrySet()) {
+                List<Delivery> deliveries = snapshot.computeIfAbsent(entry.getKey(), k -> new ArrayList<>());
+                for (TakenBatch batch : entry.getValue()) {
+                    deliveries.addAll(batch.deliveries);
+                }
+            }
+            for (Map.Entry<String, List<Delivery>> entry : pending.entrySet()) {
+                snapshot.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+            }
+            queue.drainTo(included);
+        }
+        if (included.remove(PendingWrite.SHUTDOWN)) {
+            queue.add(PendingWrite.SHUTDOWN);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        int records = 0;
+        try (FileChannel out = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (Map.Entry<String, List<Delivery>> entry : snapshot.entrySet()) {
+                for (Delivery delivery : entry.getValue()) {
+                    appendRecord(out, buffer, encode(TYPE_ADD, entry.getKey(), delivery, 0));
+                    records++;
+                }
+            }
+            writeBuffer(out, buffer);
+            out.force(true);
+        } catch (IOException e) {
+            plugin.getLogger().warning("Не удалось сжать файл отложенных выдач: " + e.getMessage());
+            tmp.delete();
+            writeBatch(included);
+            return;
+        }
+
+        boolean replaced = false;
+        try {
+            channel.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fileRecords = records;
+            replaced = true;
+        } catch (IOException e) {
+            plugin.getLogger().warning("Не удалось сжать файл отложенных выдач: " + e.getMessage());
+            tmp.delete();
+        }
+
+        try {
+            if (!channel.isOpen()) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                channel.position(channel.size());
+            }
+        } catch (IOException e) {
+            plugin.getLogger().severe("Не удалось открыть файл отложенных выдач: " + e.getMessage());
+            e.printStackTrace();
+        }
+
+        if (replaced) {
+            for (PendingWrite write : included) {
+                write.future.complete(null);
+            }
+        } else {
+            writeBatch(included);
+        }
+    }
+
+    private boolean needsCompaction() {
+        int live;
+        synchronized (this) {
+            live = liveEntries;
+        }
+        return fileRecords >= COMPACT_MIN_RECORDS && fileRecords > 2 * live;
+    }
+
+    private static byte[] encode(byte type, String player, Delivery delivery, int count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // Длина, заполняется ниже
+        out.writeByte(type);
+        out.writeUTF(player);
+        if (type == TYPE_ADD) {
+            out.writeUTF(delivery.itemName());
+            out.writeUTF(delivery.command());
+            out.writeLong(delivery.purchaseId());
+            out.writeUTF(delivery.itemId());
+        } else if (type == TYPE_DRAIN) {
+            out.writeInt(count);
+        }
+        out.writeInt(0); // crc32
+        byte[] record = bytes.toByteArray();
+
+        int length = record.length - 2 * Integer.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(record, Integer.BYTES, length);
+        ByteBuffer.wrap(record).putInt(0, length).putInt(record.length - Integer.BYTES, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Читает файл с начала, заполняет pending и возвращает размер корректной части
+     */
+    private long recover() throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), 64 * 1024))) {
+            while (true) {
+                int length;
+                byte[] payload;
+                int storedCrc;
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD) break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    storedCrc = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != storedCrc) break;
+
+                try {
+                    apply(payload);
+                } catch (IOException e) {
+                    break; // Запись с корректной crc, но неизвестного формата
+                }
+                fileRecords++;
+                position += length + 2L * Integer.BYTES;
+            }
+        }
+        return position;
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        String player = in.readUTF();
+        if (type == TYPE_ADD) {
+            String itemName = in.readUTF();
+            String command = in.readUTF();
+            long purchaseId = Purchase.NO_ID;
+            String itemId = "";
+            if (in.available() > 0) {
+                purchaseId = in.readLong();
+                itemId = in.readUTF();
+            }
+            pending.computeIfAbsent(player, k -> new ArrayList<>(2)).add(new Delivery(command, itemName, purchaseId, itemId));
+            liveEntries++;
+        } else if (type == TYPE_DRAIN) {
+            List<Delivery> deliveries = pending.get(player);
+            if (deliveries == null) return;
+            int count = in.available() >= Integer.BYTES ? Math.min(in.readInt(), deliveries.size()) : deliveries.size();
+            deliveries.subList(0, count).clear();
+            liveEntries -= count;
+            if (deliveries.isEmpty()) {
+                pending.remove(player);
+            }
+        }
+    }
+
+    private static void appendRecord(FileChannel out, ByteBuffer buffer, byte[] record) throws IOException {
+        if (record.length > buffer.remaining()) {
+            writeBuffer(out, buffer);
+        }
+        if (record.length > buffer.capacity()) {
+            writeFully(out, ByteBuffer.wrap(record));
+        } else {
+            buffer.put(record);
+        }
+    }
+
+    private static void writeBuffer(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(out, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static final class PendingWrite {
+        static final PendingWrite SHUTDOWN = new PendingWrite((byte) 0, "", null, 0);
+
+        final byte type;
+        final String player;
+        final Delivery delivery;
+        final int count; // Для DRAIN - число снимаемых команд
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingWrite(byte type, String player, Delivery delivery, int count) {
+            this.type = type;
+            this.player = player;
+            this.delivery = delivery;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Команды игрока, забранные одним вызовом take
+     */
+    private static final class TakenBatch {
+        final List<Delivery> deliveries;
+        boolean delivered;
+
+        TakenBatch(List<Delivery> deliveries) {
+            this.deliveries = deliveries;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.bedepay.trademc.storage;
+
+import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.util.LongHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Журнал выданных покупок (защита от повторной выдачи)
+ * На диске - append-only файл из 8-байтных id, в памяти - примитивное множество long
+ * Покупка сначала резервируется только в памяти и попадает в файл после того, как её команды
+ * выполнены или отложены: при сбое в этом промежутке она будет выдана повторно (из журнала callback
+ * или следующим опросом), а не потеряна
+ */
+public class PurchaseLedger {
+    private static final int RECORD_SIZE = Long.BYTES;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final TradeMc plugin;
+    private final File file;
+    private final LongHashSet delivered = new LongHashSet(1024);
+    private final Set<Long> reserved = new HashSet<>(); // Покупки в процессе выдачи, только в памяти
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(RECORD_SIZE);
+    private FileChannel channel;
+
+    public PurchaseLedger(TradeMc plugin, File file) {
+        this.plugin = plugin;
+        this.file = file;
+    }
+
+    /**
+     * Загружает журнал с диска и открывает его для дозаписи
+     */
+    public synchronized void open() {
+        if (channel != null) return;
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        try {
+            channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            long size = channel.size();
+            long validSize = size - (size % RECORD_SIZE);
+            if (validSize != size) {
+                // Обрезаем недописанную запись после аварийного завершения
+                plugin.getLogger().warning("Журнал выданных покупок повреждён, обрезаем " + (size - validSize) + " байт");
+                channel.truncate(validSize);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            long position = 0;
+            while (position < validSize) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) break;
+                position += read;
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    delivered.add(buffer.getLong());
+                }
+                // Хвост неполной записи перечитаем на следующей итерации
+                position -= buffer.remaining();
+            }
+            channel.position(validSize);
+
+            plugin.getLogger().info("Загружено выданных покупок: " + delivered.size());
+        } catch (IOException e) {
+            plugin.getLogger().severe("Не удалось открыть журнал выданных покупок: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Проверяет, была ли покупка уже выдана или выдаётся сейчас
+     */
+    public synchronized boolean isDelivered(long purchaseId) {
+        return delivered.contains(purchaseId) || reserved.contains(purchaseId);
+    }
+
+    /**
+     * Резервирует покупку на время выдачи без записи на диск
+     * Возвращает false, если покупка уже выдана или выдаётся сейчас
+     */
+    public synchronized boolean reserve(long purchaseId) {
+        if (delivered.contains(purchaseId)) {
+            return false;
+        }
+        return reserved.add(purchaseId);
+    }
+
+    /**
+     * Сохраняет зарезервированную покупку как выданную
+     */
+    public synchronized void commit(long purchaseId) {
+        reserved.remove(purchaseId);
+        if (delivered.add(purchaseId)) {
+            write(purchaseId);
+        }
+    }
+
+    /**
+     * Снимает резерв, если выдача не состоялась
+     */
+    public synchronized void release(long purchaseId) {
+        reserved.remove(purchaseId);
+    }
+
+    private void write(long purchaseId) {
+        if (channel != null) {
+            try {
+                writeBuffer.clear();
+                writeBuffer.putLong(purchaseId).flip();
+                while (writeBuffer.hasRemaining()) {
+                    channel.write(writeBuffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                plugin.getLogger().severe("Ошибка записи в журнал выданных покупок: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return delivered.size();
+    }
+
+    /**
+     * Закрывает файл журнала
+     */
+    public synchronized void close() {
+        if (channel == null) return;
+        try {
+            channel.force(true);
+            channel.close();
+        } catch (IOException e) {
+            plugin.getLogger().severe("Ошибка закрытия журнала выданных покупок: " + e.getMessage());
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+}
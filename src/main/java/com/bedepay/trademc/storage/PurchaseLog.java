@@ -0,0 +1,438 @@
+package com.bedepay.trademc.storage;
+
+import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.manager.Settings;
+import com.bedepay.trademc.util.RingBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Лог покупок logs/purchases.log с записью в фоновом потоке
+ * Вызывающие потоки только добавляют строку в неблокирующую очередь, один поток
+ * пишет накопившиеся строки через постоянно открытый FileChannel и сбрасывает их на диск
+ * не чаще logging.flush-interval-ms. Файл ротируется по размеру и по смене дня,
+ * старые части сжимаются gzip в пуле плагина, хранится не больше logging.max-history частей
+ * Последние строки дополнительно держатся в памяти для /trademc history
+ */
+public class PurchaseLog {
+    public static final String FILE_NAME = "purchases.log";
+    private static final String ARCHIVE_PREFIX = "purchases-";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TAIL_BLOCK_SIZE = 8 * 1024;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5_000L;
+
+    private final Logger logger;
+    private final Executor background; // Сжатие архивов
+    private final File directory;
+    private final File file;
+    private final boolean enabled;
+    private final long maxFileBytes;
+    private final boolean rotateDaily;
+    private final boolean compress;
+    private final int maxHistory;
+    private final long flushIntervalNanos;
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    private final RingBuffer<String> recent;
+
+    private FileChannel channel;      // Доступ только из потока записи (и open/close до/после него)
+    private long size;
+    private LocalDate segmentDay;
+    private long lastForce;
+    private boolean dirty;
+    private Thread writer;
+    private volatile boolean running;
+    private volatile boolean parked;
+
+    public PurchaseLog(TradeMc plugin) {
+        this(new File(plugin.getDataFolder(), "logs"), plugin.getConfigManager().getSettings().logging(),
+            plugin.getLogger(), plugin.getExecutorService());
+    }
+
+    /**
+     * Лог в заданном каталоге с настройками секции logging (без запущенного сервера, например в бенчмарках)
+     */
+    public PurchaseLog(File directory, Settings.Logging settings, Logger logger, Executor background) {
+        this.logger = logger;
+        this.background = background;
+        this.directory = directory;
+        this.file = new File(directory, FILE_NAME);
+        this.enabled = settings.enabled();
+        this.maxFileBytes = settings.maxFileBytes();
+        this.rotateDaily = settings.rotateDaily();
+        this.compress = settings.compress();
+        this.maxHistory = settings.maxHistory();
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(settings.flushIntervalMillis());
+        this.recent = new RingBuffer<>(settings.historySize());
+    }
+
+    /**
+     * Открывает текущий файл лога и запускает поток записи
+     */
+    public synchronized void open() throws IOException {
+        if (!enabled || writer != null) return;
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        openSegment();
+        // Последние записи читаются с конца файла блоками, размер файла не важен
+        List<String> tail = readTail(file, recent.capacity());
+        for (int i = tail.size() - 1; i >= 0; i--) {
+            recent.add(tail.get(i));
+        }
+        if (rotateDaily && size > 0 && !segmentDay.equals(LocalDate.now())) {
+            rotate();
+        }
+        // Части, не сжатые до прошлого выключения
+        if (compress) {
+            for (String name : listArchives()) {
+                File archive = new File(directory, name + ".log");
+                if (archive.exists()) {
+                    compressInBackground(archive);
+                }
+            }
+        }
+
+        running = true;
+        writer = new Thread(this::writeLoop, "TradeMc-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Добавляет строку в лог, не блокируя вызывающий поток
+     */
+    public void append(String line) {
+        if (!enabled || !running) return;
+        recent.add(line);
+        queue.offer(line);
+        if (parked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Последние записи лога от новых к старым, пропустив offset самых новых
+     */
+    public List<String> getRecent(int offset, int count) {
+        return recent.newest(offset, count);
+    }
+
+    /**
+     * Количество записей, доступных через getRecent
+     */
+    public int getRecentCount() {
+        return recent.size();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Читает до maxLines последних строк файла от новых к старым
+     * Файл читается с конца блоками по 8 КБ, пока не набрано нужное количество строк
+     */
+    public static List<String> readTail(File source, int maxLines) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (!source.exists() || maxLines <= 0) return lines;
+
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long position = in.size();
+            byte[] block = new byte[TAIL_BLOCK_SIZE];
+            byte[] carry = new byte[0]; // Начало строки, продолжение которой уже прочитано
+            while (position > 0 && lines.size() < maxLines) {
+                int length = (int) Math.min(TAIL_BLOCK_SIZE, position);
+                position -= length;
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, position + buffer.position()) < 0) break;
+                }
+
+                int end = length;
+                for (int i = length - 1; i >= 0 && lines.size() < maxLines; i--) {
+                    if (block[i] == '\n') {
+                        addLine(lines, block, i + 1, end, carry);
+                        carry = new byte[0];
+                        end = i;
+                    }
+                }
+                byte[] joined = new byte[end + carry.length];
+                System.arraycopy(block, 0, joined, 0, end);
+                System.arraycopy(carry, 0, joined, end, carry.length);
+                carry = joined;
+            }
+            if (position == 0 && lines.size() < maxLines) {
+                addLine(lines, carry, 0, carry.length, new byte[0]);
+            }
+        }
+        return lines;
+    }
+
+    private static void addLine(List<String> lines, byte[] block, int from, int to, byte[] carry) {
+        byte[] bytes = new byte[to - from + carry.length];
+        System.arraycopy(block, from, bytes, 0, to - from);
+        System.arraycopy(carry, 0, bytes, to - from, carry.length);
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        if (length > 0) {
+            lines.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Записывает остаток очереди и закрывает файл
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            thread = writer;
+            writer = null;
+        }
+        if (thread == null) return;
+
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            logger.warning("Запись лога покупок не завершилась вовремя");
+        }
+    }
+
+    private void writeLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (true) {
+            String line = queue.poll();
+            if (line == null) {
+                if (!running) break;
+                forceIfDue(false);
+                parked = true;
+                // Повторная проверка после выставления флага, чтобы не пропустить unpark
+                if (queue.isEmpty() && running) {
+                    LockSupport.parkNanos(this, flushIntervalNanos);
+                }
+                parked = false;
+                continue;
+            }
+
+            try {
+                rotateIfNeeded();
+                // Всё, что накопилось в очереди, пишется одной серией write
+                do {
+                    byte[] bytes = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+                    if (bytes.length > buffer.remaining()) {
+                        writeBuffer(buffer);
+                    }
+                    if (bytes.length > buffer.capacity()) {
+                        writeFully(ByteBuffer.wrap(bytes));
+                    } else {
+                        buffer.put(bytes);
+                    }
+                } while (size + buffer.position() < maxFileBytes && (line = queue.poll()) != null);
+                writeBuffer(buffer);
+            } catch (IOException e) {
+                buffer.clear();
+                logger.severe("Ошибка записи в лог-файл: " + e.getMessage());
+                e.printStackTrace();
+                reopenQuietly();
+            } catch (RuntimeException e) {
+                // Поток записи единственный: без него лог перестал бы писаться до перезапуска
+                buffer.clear();
+                logger.severe("Непредвиденная ошибка потока записи лога: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            forceIfDue(true);
+            channel.close();
+        } catch (IOException e) {
+            logger.severe("Ошибка закрытия лог-файла: " + e.getMessage());
+        }
+    }
+
+    private void writeBuffer(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer);
+        }
+        dirty = true;
+    }
+
+    private void forceIfDue(boolean always) {
+        if (!dirty) return;
+        long now = System.nanoTime();
+        if (!always && now - lastForce < flushIntervalNanos) return;
+        try {
+            channel.force(false);
+            dirty = false;
+            lastForce = now;
+        } catch (IOException e) {
+            logger.warning("Не удалось сбросить лог покупок на диск: " + e.getMessage());
+        }
+    }
+
+    private void openSegment() throws IOException {
+        channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+        segmentDay = size > 0
+            ? LocalDate.ofInstant(Instant.ofEpochMilli(file.lastModified()), ZoneId.systemDefault())
+            : LocalDate.now();
+        dirty = false;
+    }
+
+    private void reopenQuietly() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Канал уже недоступен
+        }
+        try {
+            openSegment();
+        } catch (IOException e) {
+            logger.severe("Не удалось открыть лог-файл: " + e.getMessage());
+        }
+    }
+
+    private void rotateIfNeeded() throws IOException {
+        if (size >= maxFileBytes || (rotateDaily && size > 0 && !segmentDay.equals(LocalDate.now()))) {
+            rotate();
+        }
+    }
+
+    /**
+     * Переименовывает текущий файл в purchases-<дата>-<n>.log и начинает новый
+     */
+    private void rotate() throws IOException {
+        channel.force(false);
+        channel.close();
+
+        // Номер части за день только растёт, чтобы имена сортировались в порядке создания
+        int index = 0;
+        String dayPrefix = ARCHIVE_PREFIX + segmentDay + "-";
+        for (String name : listArchives()) {
+            if (name.startsWith(dayPrefix)) {
+                index = Math.max(index, archiveIndex(name) + 1);
+            }
+        }
+        File archive = new File(directory, dayPrefix + index + ".log");
+        Files.move(file.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        openSegment();
+        if (compress) {
+            compressInBackground(archive);
+        }
+        enforceHistory();
+    }
+
+    private void compressInBackground(File archive) {
+        try {
+            background.execute(() -> compressArchive(archive));
+        } catch (RejectedExecutionException e) {
+            // Сожмём при следующем запуске
+        }
+    }
+
+    private void compressArchive(File archive) {
+        File gz = new File(archive.getPath() + ".gz");
+        File tmp = new File(archive.getPath() + ".gz.tmp");
+        try (InputStream in = Files.newInputStream(archive.toPath());
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp.toPath()), BUFFER_SIZE)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            tmp.delete();
+            logger.warning("Не удалось сжать " + archive.getName() + ": " + e.getMessage());
+            return;
+        }
+        try {
+            if (!archive.exists()) {
+                // Часть удалена по max-history, пока сжималась
+                Files.deleteIfExists(tmp.toPath());
+                return;
+            }
+            tmp.setLastModified(archive.lastModified());
+            Files.move(tmp.toPath(), gz.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(archive.toPath());
+        } catch (IOException e) {
+            logger.warning("Не удалось сжать " + archive.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Удаляет самые старые части сверх logging.max-history
+     */
+    private void enforceHistory() {
+        List<String> archives = listArchives();
+        int excess = archives.size() - maxHistory;
+        for (int i = 0; i < excess; i++) {
+            File plain = new File(directory, archives.get(i) + ".log");
+            File gz = new File(directory, archives.get(i) + ".log.gz");
+            if ((plain.exists() && !plain.delete()) || (gz.exists() && !gz.delete())) {
+                logger.warning("Не удалось удалить старый лог " + archives.get(i));
+            }
+        }
+    }
+
+    /**
+     * Имена архивных частей без расширения (purchases-<дата>-<n>) от старых к новым
+     */
+    private List<String> listArchives() {
+        String[] files = directory.list((dir, name) -> name.startsWith(ARCHIVE_PREFIX)
+            && (name.endsWith(".log") || name.endsWith(".log.gz")));
+        List<String> archives = new ArrayList<>();
+        if (files == null) return archives;
+        for (String name : files) {
+            String base = name.substring(0, name.lastIndexOf(".log"));
+            if (archiveIndex(base) >= 0 && !archives.contains(base)) {
+                archives.add(base);
+            }
+        }
+        // Дата в формате ISO сортируется как строка, номер части - как число
+        archives.sort(Comparator.comparing((String name) -> name.substring(0, name.lastIndexOf('-')))
+            .thenComparingInt(PurchaseLog::archiveIndex));
+        return archives;
+    }
+
+    private static int archiveIndex(String name) {
+        String base = name.endsWith(".log") ? name.substring(0, name.length() - 4) : name;
+        try {
+            return Integer.parseInt(base.substring(base.lastIndexOf('-') + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
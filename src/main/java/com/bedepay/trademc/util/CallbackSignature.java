@@ -0,0 +1,148 @@
+package com.bedepay.trademc.util;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * Проверка подписи callback по исходным байтам запроса
+ * TradeMC подписывает JSON без поля hash: sha256(json + callback-key)
+ * Поле hash вырезается из тела без разбора JSON, хэш считается по двум отрезкам
+ * массива и сравнивается за постоянное время
+ */
+public final class CallbackSignature {
+    private static final int HASH_BYTES = 32;
+    private static final byte[] HASH_KEY = {'"', 'h', 'a', 's', 'h', '"'};
+    private static final ThreadLocal<byte[]> DIGEST_BUFFER = ThreadLocal.withInitial(() -> new byte[HASH_BYTES]);
+
+    private CallbackSignature() {
+    }
+
+    /**
+     * Проверяет подпись тела callback ключом магазина
+     */
+    public static boolean verify(byte[] body, byte[] key) {
+        int n = body.length;
+        int start = skipWhitespace(body, 0);
+        if (start >= n || body[start] != '{') return false;
+
+        // Ищем ключ "hash" на первом уровне вложенности, пропуская содержимое строк
+        int keyStart = -1;
+        int depth = 0;
+        for (int i = start; i < n && keyStart < 0; i++) {
+            byte c = body[i];
+            switch (c) {
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case '"':
+                    if (depth == 1 && isHashKey(body, i)) {
+                        keyStart = i;
+                    } else {
+                        i = skipString(body, i);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (keyStart < 0) return false;
+
+        int colon = skipWhitespace(body, keyStart + HASH_KEY.length);
+        int valueQuote = skipWhitespace(body, colon + 1);
+        if (valueQuote >= n || body[valueQuote] != '"') return false;
+        int valueStart = valueQuote + 1;
+        int valueEnd = valueStart;
+        while (valueEnd < n && body[valueEnd] != '"') {
+            if (body[valueEnd] == '\\') return false;
+            valueEnd++;
+        }
+        if (valueEnd >= n || valueEnd - valueStart != HASH_BYTES * 2) return false;
+        int memberEnd = valueEnd + 1;
+
+        // Вырезаем член вместе с соседней запятой
+        int removeStart = keyStart;
+        int removeEnd = memberEnd;
+        int before = skipWhitespaceBackward(body, keyStart - 1);
+        if (before >= 0 && body[before] == ',') {
+            removeStart = before;
+        } else {
+            int after = skipWhitespace(body, memberEnd);
+            if (after < n && body[after] == ',') {
+                removeEnd = after + 1;
+            }
+        }
+
+        byte[] calculated = DIGEST_BUFFER.get();
+        MessageDigest md = Utils.sha256Digest();
+        md.update(body, 0, removeStart);
+        md.update(body, removeEnd, n - removeEnd);
+        md.update(key);
+        try {
+            md.digest(calculated, 0, HASH_BYTES);
+        } catch (DigestException e) {
+            return false;
+        }
+
+        // Сравнение за постоянное время, без декодирования hex в отдельный массив
+        int diff = 0;
+        for (int k = 0; k < HASH_BYTES; k++) {
+            int hi = hexValue(body[valueStart + 2 * k]);
+            int lo = hexValue(body[valueStart + 2 * k + 1]);
+            diff |= (hi | lo) >>> 31;  // Некорректный символ hex даёт отрицательное значение
+            diff |= ((hi << 4) | (lo & 0x0f)) ^ (calculated[k] & 0xff);
+        }
+        return diff == 0;
+    }
+
+    private static boolean isHashKey(byte[] body, int quote) {
+        if (quote + HASH_KEY.length > body.length) return false;
+        for (int k = 0; k < HASH_KEY.length; k++) {
+            if (body[quote + k] != HASH_KEY[k]) return false;
+        }
+        int colon = skipWhitespace(body, quote + HASH_KEY.length);
+        return colon < body.length && body[colon] == ':';
+    }
+
+    /**
+     * Возвращает индекс закрывающей кавычки строки, начинающейся в quote
+     */
+    private static int skipString(byte[] body, int quote) {
+        int i = quote + 1;
+        while (i < body.length) {
+            byte c = body[i];
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '"') return i;
+            i++;
+        }
+        return body.length;
+    }
+
+    private static int skipWhitespace(byte[] body, int i) {
+        while (i < body.length && isWhitespace(body[i])) i++;
+        return i;
+    }
+
+    private static int skipWhitespaceBackward(byte[] body, int i) {
+        while (i >= 0 && isWhitespace(body[i])) i--;
+        return i;
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private static int hexValue(byte c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+}
@@ -0,0 +1,117 @@
+package com.bedepay.trademc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Скомпилированное сообщение из locale.yml
+ * Текст один раз разбивается на литералы и подстановки вида %name%, цветовые коды &
+ * переводятся заранее (для лога хранится вариант без цветов). Подставленные значения
+ * не раскрашиваются, поэтому ник игрока не может добавить цвет в сообщение
+ */
+public final class MessageTemplate {
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(128));
+    private static final String COLOR_CODES = "0123456789abcdefklmnorxABCDEFKLMNORX";
+
+    private final String[] literals;      // literals[i] стоит перед slots[i], последний - хвост
+    private final String[] plainLiterals; // То же без цветовых кодов
+    private final String[] slots;         // Имена подстановок вместе с %
+
+    private MessageTemplate(String[] literals, String[] plainLiterals, String[] slots) {
+        this.literals = literals;
+        this.plainLiterals = plainLiterals;
+        this.slots = slots;
+    }
+
+    public static MessageTemplate compile(String source) {
+        List<String> parts = new ArrayList<>();
+        List<String> slots = new ArrayList<>();
+        int literalStart = 0;
+        int i = 0;
+        while (i < source.length()) {
+            int end = source.charAt(i) == '%' ? placeholderEnd(source, i) : -1;
+            if (end < 0) {
+                i++;
+                continue;
+            }
+            parts.add(source.substring(literalStart, i));
+            slots.add(source.substring(i, end));
+            i = end;
+            literalStart = end;
+        }
+        parts.add(source.substring(literalStart));
+
+        String[] literals = new String[parts.size()];
+        String[] plain = new String[parts.size()];
+        for (int k = 0; k < literals.length; k++) {
+            literals[k] = Utils.color(parts.get(k));
+            plain[k] = stripColorCodes(parts.get(k));
+        }
+        return new MessageTemplate(literals, plain, slots.toArray(new String[0]));
+    }
+
+    /**
+     * Собирает сообщение с цветами, placeholders - пары "%имя%", значение
+     */
+    public String render(String... placeholders) {
+        return render(literals, placeholders);
+    }
+
+    /**
+     * Собирает сообщение без цветовых кодов (для файла лога)
+     */
+    public String renderPlain(String... placeholders) {
+        return render(plainLiterals, placeholders);
+    }
+
+    private String render(String[] parts, String[] placeholders) {
+        if (slots.length == 0) return parts[0];
+        StringBuilder sb = BUILDER.get();
+        sb.setLength(0);
+        for (int i = 0; i < slots.length; i++) {
+            sb.append(parts[i]);
+            sb.append(valueOf(slots[i], placeholders));
+        }
+        sb.append(parts[slots.length]);
+        return sb.toString();
+    }
+
+    private static String valueOf(String slot, String[] placeholders) {
+        for (int i = 0; i + 1 < placeholders.length; i += 2) {
+            if (slot.equals(placeholders[i])) {
+                return placeholders[i + 1];
+            }
+        }
+        return slot; // Неизвестная подстановка остаётся как есть
+    }
+
+    /**
+     * Индекс после закрывающего % или -1, если это не подстановка
+     */
+    private static int placeholderEnd(String source, int start) {
+        int i = start + 1;
+        while (i < source.length()) {
+            char c = source.charAt(i);
+            if (c == '%') return i > start + 1 ? i + 1 : -1;
+            if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9') && c != '_' && c != '-') {
+                return -1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static String stripColorCodes(String text) {
+        if (text.indexOf('&') < 0) return text;
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&' && i + 1 < text.length() && COLOR_CODES.indexOf(text.charAt(i + 1)) >= 0) {
+                i++;
+                continue;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
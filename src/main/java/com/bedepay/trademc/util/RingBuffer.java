@@ -0,0 +1,52 @@
+package com.bedepay.trademc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Кольцевой буфер фиксированного размера, новые элементы вытесняют самые старые
+ * Чтение последних элементов стоит O(количество запрошенных), а не O(размер буфера)
+ * Потокобезопасен
+ */
+public class RingBuffer<T> {
+    private final Object[] items;
+    private int head; // Индекс, куда будет записан следующий элемент
+    private int size;
+
+    public RingBuffer(int capacity) {
+        this.items = new Object[Math.max(1, capacity)];
+    }
+
+    /**
+     * Добавляет элемент как самый новый
+     */
+    public synchronized void add(T item) {
+        items[head] = item;
+        head = (head + 1) % items.length;
+        if (size < items.length) {
+            size++;
+        }
+    }
+
+    /**
+     * Возвращает до count элементов от новых к старым, пропустив offset самых новых
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<T> newest(int offset, int count) {
+        int available = Math.max(0, Math.min(count, size - offset));
+        List<T> result = new ArrayList<>(available);
+        for (int i = 0; i < available; i++) {
+            int index = Math.floorMod(head - 1 - offset - i, items.length);
+            result.add((T) items[index]);
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+}
@@ -1,26 +1,26 @@
 package com.bedepay.trademc.util;
 
 import com.bedepay.trademc.TradeMc;
+import com.bedepay.trademc.manager.Settings;
 import com.google.gson.*;
 import org.bukkit.ChatColor;
 import java.security.MessageDigest;
-import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
-import java.io.*;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.util.Collections;
 
 /**
  * Утилиты для TradeMc
  */
 public class Utils {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    });
 
     /**
      * Преобразует цветовые коды в Bukkit формат
@@ -33,72 +33,45 @@ public class Utils {
      * Генерирует SHA-256 хэш
      */
     public static String sha256(String input) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] hash = md.digest(input.getBytes(StandardCharsets.UTF_8));
-            return String.format("%064x", new BigInteger(1, hash));
-        } catch (Exception e) {
-            return "";
-        }
+        byte[] hash = sha256Digest().digest(input.getBytes(StandardCharsets.UTF_8));
+        return toHex(hash);
     }
 
     /**
-     * Логирует сообщение в файл
+     * Возвращает сброшенный SHA-256 дайджест текущего потока
+     * MessageDigest.getInstance дорогой, поэтому экземпляр переиспользуется
      */
-    public static void logToFile(TradeMc plugin, String message) {
-        if (!plugin.getConfig().getBoolean("logging.enabled", true)) return;
-
-        String logFilePath = plugin.getDataFolder() + File.separator + "logs" + File.separator + "purchases.log";
-        File logDir = new File(plugin.getDataFolder(), "logs");
-        if (!logDir.exists()) {
-            logDir.mkdirs();
-        }
-
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFilePath, true))) {
-            writer.write(message);
-            writer.newLine();
-        } catch (IOException e) {
-            plugin.getLogger().severe("Ошибка записи в лог-файл: " + e.getMessage());
-            e.printStackTrace();
-        }
+    public static MessageDigest sha256Digest() {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        return md;
     }
 
     /**
-     * Загружает последние n строк из файла логов
+     * Кодирует байты в hex строку в нижнем регистре
      */
-    public static List<String> loadLogLines(TradeMc plugin, int n) {
-        List<String> lines = new ArrayList<>();
-        File logFile = new File(plugin.getDataFolder(), "logs/purchases.log");
-        if (!logFile.exists()) return lines;
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
-            List<String> allLines = new ArrayList<>();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                allLines.add(line);
-            }
-            // Получаем последние n строк
-            int start = Math.max(0, allLines.size() - n);
-            lines.addAll(allLines.subList(start, allLines.size()));
-            Collections.reverse(lines);
-        } catch (IOException e) {
-            plugin.getLogger().severe("Ошибка чтения лог-файла: " + e.getMessage());
-            e.printStackTrace();
+    public static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int v = bytes[i] & 0xff;
+            out[i * 2] = HEX[v >>> 4];
+            out[i * 2 + 1] = HEX[v & 0x0f];
         }
-        return lines;
+        return new String(out);
     }
 
     /**
      * Создает тестовый JSON для отладки покупки
      */
     public static Optional<String> createDebugPurchaseJson(TradeMc plugin, String buyer, String itemId, String itemName) {
-        String callbackKey = plugin.getConfig().getString("callback-key", "");
+        Settings settings = plugin.getConfigManager().getSettings();
+        String callbackKey = settings.callbackKey();
         if (callbackKey.isEmpty()) {
             return Optional.empty();
         }
 
         JsonObject json = new JsonObject();
-        json.addProperty("shop_id", plugin.getConfig().getString("shops", "0"));
+        json.addProperty("shop_id", settings.shopId());
         json.addProperty("buyer", buyer);
         
         JsonArray itemsArray = new JsonArray();
@@ -0,0 +1,93 @@
+package com.bedepay.trademc.purchase;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Белый список команд: совпадение с шаблоном целиком и типизированные подстановки
+ */
+class CommandWhitelistTest {
+    private static final CommandWhitelist WHITELIST = compile(
+        "lp user %player% group set Guardian",
+        "give %player% %item% %amount%",
+        "eco give %player% %amount%"
+    );
+
+    @Test
+    void exactTemplateIsRenderedWithBuyer() {
+        assertEquals("lp user Steve group set Guardian",
+            WHITELIST.render("lp user %player% group set Guardian", "Steve"));
+    }
+
+    @Test
+    void alreadySubstitutedPlayerIsReplacedWithBuyer() {
+        assertEquals("lp user Steve group set Guardian",
+            WHITELIST.render("lp user Alex group set Guardian", "Steve"));
+    }
+
+    @Test
+    void typedSlotsAreCopiedFromCommand() {
+        assertEquals("give Steve minecraft:diamond 64",
+            WHITELIST.render("give %player% minecraft:diamond 64", "Steve"));
+        assertEquals("eco give Steve 1000", WHITELIST.render("eco give %player% 1000", "Steve"));
+    }
+
+    @Test
+    void chainedCommandIsRejected() {
+        assertNull(WHITELIST.render("give %player% minecraft:diamond 1; op Steve", "Steve"));
+        assertNull(WHITELIST.render("give %player% minecraft:diamond 1 ; op Steve", "Steve"));
+        assertNull(WHITELIST.render("lp user %player% group set Guardian; op Steve", "Steve"));
+        assertNull(WHITELIST.render("give Steve;op minecraft:diamond 1", "Steve"));
+    }
+
+    @Test
+    void negativeOrNonNumericAmountIsRejected() {
+        assertNull(WHITELIST.render("give %player% minecraft:diamond -5", "Steve"));
+        assertNull(WHITELIST.render("eco give %player% 1e9", "Steve"));
+        assertNull(WHITELIST.render("eco give %player% 1.5", "Steve"));
+        assertNull(WHITELIST.render("eco give %player% ", "Steve"));
+    }
+
+    @Test
+    void trailingTextIsRejected() {
+        assertNull(WHITELIST.render("lp user %player% group set Guardian extra", "Steve"));
+        assertNull(WHITELIST.render("lp user %player% group set GuardianX", "Steve"));
+        assertNull(WHITELIST.render("eco give %player% 100 200", "Steve"));
+    }
+
+    @Test
+    void oversizedSlotsAreRejected() {
+        assertNull(WHITELIST.render("lp user Player_1234567890 group set Guardian", "Steve")); // 17 символов
+        assertNull(WHITELIST.render("eco give %player% 1234567890", "Steve"));                   // 10 цифр
+    }
+
+    @Test
+    void unknownCommandIsRejected() {
+        assertNull(WHITELIST.render("op %player%", "Steve"));
+        assertNull(WHITELIST.render("lp", "Steve"));
+        assertNull(WHITELIST.render("", "Steve"));
+    }
+
+    @Test
+    void invalidTemplatesAreReported() {
+        List<String> rejected = new ArrayList<>();
+        CommandWhitelist whitelist = CommandWhitelist.compile(
+            List.of("%player% kick", "give %player%%amount%", "say hello", " "), rejected);
+
+        assertEquals(1, whitelist.size());
+        assertEquals(2, rejected.size());
+        assertEquals("say hello", whitelist.render("say hello", "Steve"));
+    }
+
+    private static CommandWhitelist compile(String... templates) {
+        List<String> rejected = new ArrayList<>();
+        CommandWhitelist whitelist = CommandWhitelist.compile(List.of(templates), rejected);
+        assertEquals(List.of(), rejected);
+        return whitelist;
+    }
+}
@@ -0,0 +1,105 @@
+package com.bedepay.trademc.purchase;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongPredicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Разбор ответа getLastPurchases: курсор и пропуск уже обработанных покупок
+ */
+class PurchaseDecoderTest {
+
+    @Test
+    void newestFirstReturnsOnlyPurchasesAfterCursor() throws IOException {
+        PurchaseDecoder.PollPage page = decode(8, id -> false, entry(10), entry(9), entry(8), entry(7));
+
+        assertEquals(List.of(10L, 9L), ids(page));
+        assertEquals(10L, page.newestId());
+        assertEquals(1_700_000_010L, page.newestTime());
+    }
+
+    @Test
+    void oldestFirstStillReturnsPurchasesAfterCursor() throws IOException {
+        PurchaseDecoder.PollPage page = decode(8, id -> false, entry(7), entry(8), entry(9), entry(10));
+
+        assertEquals(List.of(9L, 10L), ids(page));
+        assertEquals(10L, page.newestId());
+    }
+
+    @Test
+    void unorderedResponseIsReadToTheEnd() throws IOException {
+        PurchaseDecoder.PollPage page = decode(8, id -> false, entry(9), entry(5), entry(12), entry(8), entry(11));
+
+        assertEquals(List.of(9L, 12L, 11L), ids(page));
+        assertEquals(12L, page.newestId());
+        assertEquals(1_700_000_012L, page.newestTime());
+    }
+
+    @Test
+    void skippedPurchasesStillMoveNewestId() throws IOException {
+        // Покупки, уже выданные через журнал, не возвращаются, но курсор должен их пройти
+        PurchaseDecoder.PollPage page = decode(8, id -> id == 10, entry(10), entry(9));
+
+        assertEquals(List.of(9L), ids(page));
+        assertEquals(10L, page.newestId());
+    }
+
+    @Test
+    void nothingNewKeepsCursor() throws IOException {
+        PurchaseDecoder.PollPage page = decode(10, id -> false, entry(10), entry(9));
+
+        assertEquals(List.of(), ids(page));
+        assertEquals(10L, page.newestId());
+        assertEquals(0L, page.newestTime());
+    }
+
+    @Test
+    void idAfterItemIsStillCheckedAgainstCursor() throws IOException {
+        String json = "{\"response\":["
+            + "{\"buyer\":\"Steve\",\"time\":1700000007,\"item\":" + item() + ",\"id\":7},"
+            + "{\"buyer\":\"Alex\",\"time\":1700000009,\"item\":" + item() + ",\"id\":9}"
+            + "]}";
+        PurchaseDecoder.PollPage page = PurchaseDecoder.decodePoll(new StringReader(json), 8, id -> false);
+
+        assertEquals(List.of(9L), ids(page));
+        assertEquals("Alex", page.purchases().get(0).buyer());
+    }
+
+    @Test
+    void unknownFieldsAndNonObjectEntriesAreIgnored() throws IOException {
+        String json = "{\"success\":true,\"response\":[null,42," + entry(9) + ",\"x\"],\"extra\":{\"id\":100}}";
+        PurchaseDecoder.PollPage page = PurchaseDecoder.decodePoll(new StringReader(json), 8, id -> false);
+
+        assertEquals(List.of(9L), ids(page));
+        assertEquals(9L, page.newestId());
+    }
+
+    private static PurchaseDecoder.PollPage decode(long cursor, LongPredicate skip,
+                                                   String... entries) throws IOException {
+        String json = "{\"response\":[" + String.join(",", entries) + "]}";
+        return PurchaseDecoder.decodePoll(new StringReader(json), cursor, skip);
+    }
+
+    private static String entry(long id) {
+        return "{\"id\":" + id + ",\"buyer\":\"Player" + id + "\",\"time\":" + (1_700_000_000L + id)
+            + ",\"item\":" + item() + "}";
+    }
+
+    private static String item() {
+        return "{\"id\":\"100\",\"name\":\"VIP\",\"cost\":10.00,\"rcon\":[[\"give {player} diamond 1\",\"\"]]}";
+    }
+
+    private static List<Long> ids(PurchaseDecoder.PollPage page) {
+        List<Long> ids = new ArrayList<>();
+        for (Purchase purchase : page.purchases()) {
+            ids.add(purchase.id());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,138 @@
+package com.bedepay.trademc.storage;
+
+import com.bedepay.trademc.TradeMc;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Восстановление журнала callback после перезапуска и обрыва записи
+ */
+class CallbackJournalTest {
+    private static final int RECORD_OVERHEAD = Integer.BYTES + Long.BYTES + 1 + Integer.BYTES;
+
+    @TempDir
+    File directory;
+
+    private TradeMc plugin;
+    private File file;
+    private CallbackJournal journal;
+
+    @BeforeEach
+    void setUp() {
+        plugin = mock(TradeMc.class);
+        when(plugin.getLogger()).thenReturn(Logger.getLogger("TradeMc-test"));
+        file = new File(directory, "callbacks.journal");
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (journal != null) journal.close();
+    }
+
+    @Test
+    void unfinishedEntriesAreReturnedAfterReopen() throws Exception {
+        reopen();
+        long first = journal.append(bytes("first")).get().seq();
+        journal.append(bytes("second")).get();
+        journal.markDone(first);
+
+        List<CallbackJournal.Entry> unfinished = reopen();
+
+        assertEquals(List.of("second"), payloads(unfinished));
+    }
+
+    @Test
+    void truncatedTailRecordIsCutOnRecovery() throws Exception {
+        reopen();
+        journal.append(bytes("first")).get();
+        journal.append(bytes("second")).get();
+        journal.close();
+        journal = null;
+        setLength(file.length() - 3); // Обрыв посреди второй записи
+
+        List<CallbackJournal.Entry> unfinished = reopen();
+
+        assertEquals(List.of("first"), payloads(unfinished));
+        assertEquals(RECORD_OVERHEAD + "first".length(), file.length());
+
+        // Новые записи пишутся сразу за последней целой и читаются при следующем запуске
+        journal.append(bytes("third")).get();
+        assertEquals(List.of("first", "third"), payloads(reopen()));
+    }
+
+    @Test
+    void recordWithBadChecksumIsCutWithEverythingAfterIt() throws Exception {
+        reopen();
+        journal.append(bytes("first")).get();
+        journal.append(bytes("second")).get();
+        journal.append(bytes("third")).get();
+        journal.close();
+        journal = null;
+        flipByte(RECORD_OVERHEAD + "first".length() + RECORD_OVERHEAD - 2); // Данные второй записи
+
+        List<CallbackJournal.Entry> unfinished = reopen();
+
+        assertEquals(List.of("first"), payloads(unfinished));
+        assertEquals(RECORD_OVERHEAD + "first".length(), file.length());
+    }
+
+    @Test
+    void garbageAfterLastRecordIsCutOnRecovery() throws Exception {
+        reopen();
+        journal.append(bytes("first")).get();
+        journal.close();
+        journal = null;
+        long validLength = file.length();
+        setLength(validLength + 5); // Заголовок следующей записи не успел записаться
+
+        assertEquals(List.of("first"), payloads(reopen()));
+        assertEquals(validLength, file.length());
+    }
+
+    private List<CallbackJournal.Entry> reopen() throws IOException {
+        if (journal != null) journal.close();
+        journal = new CallbackJournal(plugin, file);
+        return journal.open(entry -> {});
+    }
+
+    private void setLength(long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    private void flipByte(long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xFF);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> payloads(List<CallbackJournal.Entry> entries) {
+        List<String> result = new ArrayList<>(entries.size());
+        for (CallbackJournal.Entry entry : entries) {
+            result.add(new String(entry.payload(), StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,235 @@
+package com.bedepay.trademc.storage;
+
+import com.bedepay.trademc.TradeMc;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Отложенные выдачи: восстановление после перезапуска и снятие команд с диска только после выдачи
+ */
+class PendingDeliveryStoreTest {
+    private static final String PLAYER = "Steve";
+
+    @TempDir
+    File directory;
+
+    private TradeMc plugin;
+    private File file;
+    private PendingDeliveryStore store;
+
+    @BeforeEach
+    void setUp() {
+        plugin = mock(TradeMc.class);
+        when(plugin.getLogger()).thenReturn(Logger.getLogger("TradeMc-test"));
+        file = new File(directory, "pending.dat");
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (store != null) store.close();
+    }
+
+    @Test
+    void addedCommandsSurviveReopen() throws Exception {
+        reopen();
+        add("give Steve diamond 1");
+        add("give Steve gold_ingot 2");
+
+        reopen();
+
+        assertEquals(List.of("give Steve diamond 1", "give Steve gold_ingot 2"), takeCommands());
+    }
+
+    @Test
+    void deliveryFieldsSurviveReopen() throws Exception {
+        reopen();
+        store.add(PLAYER, new PendingDeliveryStore.Delivery("give Steve diamond 1", "Алмазы", 1001L, "vip-7")).get();
+
+        reopen();
+
+        assertEquals(List.of(new PendingDeliveryStore.Delivery("give Steve diamond 1", "Алмазы", 1001L, "vip-7")),
+            store.take(List.of(PLAYER)).get("steve"));
+    }
+
+    @Test
+    void truncatedTailRecordIsCutOnRecovery() throws Exception {
+        reopen();
+        add("give Steve diamond 1");
+        store.close();
+        long validLength = file.length();
+        store = null;
+        reopen();
+        add("give Steve gold_ingot 2");
+        store.close();
+        store = null;
+        setLength(file.length() - 3); // Обрыв посреди второй записи
+
+        reopen();
+
+        assertEquals(validLength, file.length());
+        assertEquals(List.of("give Steve diamond 1"), takeCommands());
+    }
+
+    @Test
+    void recordWithBadChecksumIsCutWithEverythingAfterIt() throws Exception {
+        reopen();
+        add("give Steve diamond 1");
+        store.close();
+        long validLength = file.length();
+        store = null;
+        reopen();
+        add("give Steve gold_ingot 2");
+        add("give Steve emerald 3");
+        store.close();
+        store = null;
+        flipByte(validLength + Integer.BYTES + 2); // Данные второй записи
+
+        reopen();
+
+        assertEquals(validLength, file.length());
+        assertEquals(List.of("give Steve diamond 1"), takeCommands());
+    }
+
+    @Test
+    void takenCommandsStayOnDiskUntilDelivered() throws Exception {
+        reopen();
+        add("give Steve diamond 1");
+        assertEquals(List.of("give Steve diamond 1"), takeCommands());
+        assertEquals(List.of(), takeCommands(), "Забранные команды не выдаются повторно");
+
+        // Сервер упал во время выдачи
+        reopen();
+
+        assertEquals(List.of("give Steve diamond 1"), takeCommands());
+    }
+
+    @Test
+    void deliveredBatchIsRemovedButLaterCommandsStay() throws Exception {
+        reopen();
+        add("give Steve diamond 1");
+        Map<String, List<PendingDeliveryStore.Delivery>> taken = store.take(List.of(PLAYER));
+        add("give Steve gold_ingot 2"); // Игрок снова вышел до подтверждения выдачи
+        store.markDelivered(PLAYER, taken.get("steve"));
+
+        reopen();
+
+        assertEquals(List.of("give Steve gold_ingot 2"), takeCommands());
+    }
+
+    @Test
+    void batchesAreRemovedFromDiskInTakeOrder() throws Exception {
+        reopen();
+        add("give Steve diamond 1");
+        List<PendingDeliveryStore.Delivery> first = store.take(List.of(PLAYER)).get("steve");
+        add("give Steve gold_ingot 2");
+        List<PendingDeliveryStore.Delivery> second = store.take(List.of(PLAYER)).get("steve");
+
+        // Вторая пачка выдана раньше первой: с диска ничего не снимается
+        store.markDelivered(PLAYER, second);
+        store.close();
+        PendingDeliveryStore restarted = new PendingDeliveryStore(plugin, file);
+        restarted.open();
+        assertEquals(2, restarted.getDeliveryCount());
+        restarted.close();
+
+        reopen();
+        first = store.take(List.of(PLAYER)).get("steve");
+        store.markDelivered(PLAYER, first);
+        reopen();
+        assertEquals(List.of(), takeCommands());
+    }
+
+    @Test
+    void commandRejectedByClosedStoreIsNotKeptInMemory() throws Exception {
+        reopen();
+        store.close();
+
+        CompletableFuture<Void> write = store.add(PLAYER, delivery("give Steve diamond 1"));
+
+        assertTrue(write.isCompletedExceptionally());
+        assertFalse(store.hasPending(PLAYER));
+        assertEquals(0, store.getDeliveryCount());
+        store = null;
+    }
+
+    @Test
+    void compactionKeepsCommandsBeingDelivered() throws Exception {
+        reopen();
+        add("give Steve diamond 1");
+        List<PendingDeliveryStore.Delivery> taken = store.take(List.of(PLAYER)).get("steve");
+        // Много выданных команд другого игрока запускают компактизацию файла
+        for (int i = 0; i < 1100; i++) {
+            add("Alex", "give Alex stone " + i);
+            store.markDelivered("Alex", store.take(List.of("Alex")).get("alex"));
+        }
+        add("give Steve gold_ingot 2");
+
+        reopen();
+        assertEquals(List.of("give Steve diamond 1", "give Steve gold_ingot 2"), takeCommands());
+
+        store.markDelivered(PLAYER, taken); // Пачка из прошлого запуска, подтверждение игнорируется
+        reopen();
+        assertEquals(2, store.getDeliveryCount());
+    }
+
+    private void reopen() {
+        if (store != null) store.close();
+        store = new PendingDeliveryStore(plugin, file);
+        store.open();
+    }
+
+    private void add(String command) throws Exception {
+        add(PLAYER, command);
+    }
+
+    private void add(String player, String command) throws Exception {
+        store.add(player, delivery(command)).get();
+    }
+
+    private static PendingDeliveryStore.Delivery delivery(String command) {
+        return new PendingDeliveryStore.Delivery(command, "Предмет", 42L, "100");
+    }
+
+    private List<String> takeCommands() {
+        List<String> commands = new ArrayList<>();
+        List<PendingDeliveryStore.Delivery> deliveries = store.take(List.of(PLAYER)).get("steve");
+        if (deliveries != null) {
+            for (PendingDeliveryStore.Delivery delivery : deliveries) {
+                commands.add(delivery.command());
+            }
+        }
+        return commands;
+    }
+
+    private void setLength(long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    private void flipByte(long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xFF);
+        }
+    }
+}
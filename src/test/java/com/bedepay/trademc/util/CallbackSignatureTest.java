@@ -0,0 +1,95 @@
+package com.bedepay.trademc.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Проверка подписи callback: поле hash вырезается из тела в любой позиции
+ */
+class CallbackSignatureTest {
+    private static final String KEY = "a3f1c9e07b5d42e8b6f0d2c4e1a7b9d3";
+    private static final String JSON = "{\"id\":42,\"buyer\":\"Steve\",\"items\":[{\"id\":\"7\",\"name\":\"VIP\"}]}";
+
+    @Test
+    void hashAsFirstMember() {
+        String hash = sign(JSON);
+        assertTrue(verify("{\"hash\":\"" + hash + "\"," + JSON.substring(1)));
+    }
+
+    @Test
+    void hashBetweenMembers() {
+        String hash = sign(JSON);
+        String body = JSON.replace(",\"buyer\"", ",\"hash\":\"" + hash + "\",\"buyer\"");
+        assertTrue(verify(body));
+    }
+
+    @Test
+    void hashAsLastMember() {
+        String hash = sign(JSON);
+        assertTrue(verify(JSON.substring(0, JSON.length() - 1) + ",\"hash\":\"" + hash + "\"}"));
+    }
+
+    @Test
+    void hashAsOnlyMember() {
+        String hash = sign("{}");
+        assertTrue(verify("{\"hash\":\"" + hash + "\"}"));
+    }
+
+    @Test
+    void uppercaseHexIsAccepted() {
+        String hash = sign(JSON).toUpperCase();
+        assertTrue(verify(JSON.substring(0, JSON.length() - 1) + ",\"hash\":\"" + hash + "\"}"));
+    }
+
+    @Test
+    void hashKeyInsideEscapedStringIsIgnored() {
+        // Скобки и кавычки внутри строк не меняют вложенность, строка с \\ в конце закрывается
+        String json = "{\"id\":42,\"buyer\":\"a{[\\\"hash\\\":\\\"x\",\"note\":\"\\\\\"}";
+        String hash = sign(json);
+        assertTrue(verify(json.substring(0, json.length() - 1) + ",\"hash\":\"" + hash + "\"}"));
+    }
+
+    @Test
+    void nestedHashKeyIsIgnored() {
+        String json = "{\"id\":42,\"items\":[{\"hash\":\"" + sign("{}") + "\"}]}";
+        String hash = sign(json);
+        assertTrue(verify(json.substring(0, json.length() - 1) + ",\"hash\":\"" + hash + "\"}"));
+        assertFalse(verify(json), "Поле hash вложенного объекта не подпись");
+    }
+
+    @Test
+    void modifiedBodyIsRejected() {
+        String hash = sign(JSON);
+        String body = JSON.replace("Steve", "Alex");
+        assertFalse(verify(body.substring(0, body.length() - 1) + ",\"hash\":\"" + hash + "\"}"));
+    }
+
+    @Test
+    void wrongKeyIsRejected() {
+        String hash = Utils.sha256(JSON + "other-key");
+        assertFalse(verify(JSON.substring(0, JSON.length() - 1) + ",\"hash\":\"" + hash + "\"}"));
+    }
+
+    @Test
+    void malformedHashIsRejected() {
+        String hash = sign(JSON);
+        String prefix = JSON.substring(0, JSON.length() - 1) + ",\"hash\":\"";
+        assertFalse(verify(JSON), "Нет поля hash");
+        assertFalse(verify(prefix + hash.substring(2) + "\"}"), "Короткий hash");
+        assertFalse(verify(prefix + "zz" + hash.substring(2) + "\"}"), "Не hex");
+        assertFalse(verify(prefix + "\\u0061" + hash.substring(1) + "\"}"), "Экранирование в hash");
+        assertFalse(verify(prefix + hash), "Незакрытая строка");
+    }
+
+    private static String sign(String json) {
+        return Utils.sha256(json + KEY);
+    }
+
+    private static boolean verify(String body) {
+        return CallbackSignature.verify(body.getBytes(StandardCharsets.UTF_8), KEY.getBytes(StandardCharsets.UTF_8));
+    }
+}